@@ -0,0 +1,104 @@
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * @version 0.1.0
+ *
+ *          Runs a whole file of expressions, one per line, in one session.
+ *
+ *          <p>
+ *          The file is read and parsed in one go before anything runs, so a
+ *          syntax error anywhere stops the batch before it's done anything,
+ *          and is reported with its line. The lines then run in order, like
+ *          they would typed into the repl: a line that fails prints its
+ *          error and the rest still run. The parsed lines skip the
+ *          ScriptCache, since a batch of thousands of lines that never repeat
+ *          would only push out what the cache holds for everything else.
+ *          </p>
+ *
+ *          <p>
+ *          The results go through one buffered writer, which is only flushed
+ *          at the end.
+ *          </p>
+ */
+class Batch {
+    /**
+     * Runs every line of source in session, writing the results and errors
+     * to out. Returns how many lines failed, and throws if source doesn't
+     * parse.
+     */
+    static int run(Interpreter session, String source, Writer out) throws Exception {
+        ArrayList<Integer> lines = new ArrayList<>();
+        ArrayList<Expr> exprs = Parser.parseScript(source, lines);
+
+        int failed = 0;
+        for (int i = 0; i < exprs.size(); i += 1) {
+            ScriptCache.Script script = new ScriptCache.Script(Resolver.resolve(Optimizer.optimize(exprs.get(i))));
+            try {
+                Interpreter.print(session.run(script), out);
+            } catch (Exception e) {
+                failed += 1;
+                out.write(String.format("line %d: %s\n", lines.get(i), e.getMessage()));
+            } catch (StackOverflowError e) {
+                failed += 1;
+                out.write(String.format("line %d: Stack overflow: recursion too deep\n", lines.get(i)));
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * java Batch [--bytecode] script: exits with 1 if any line failed, and 2
+     * if the script couldn't be read or parsed.
+     */
+    public static void main(String[] args) throws Exception {
+        // either just the script, or --bytecode and then the script
+        boolean bytecode = args.length == 2 && args[0].equals("--bytecode");
+        if (!bytecode && (args.length != 1 || args[0].equals("--bytecode"))) {
+            System.err.println("usage: java Batch [--bytecode] script");
+            System.exit(2);
+        }
+        Interpreter session = new Interpreter(bytecode ? Interpreter.Engine.Bytecode : Interpreter.Engine.TreeWalk);
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+        int failed;
+        try {
+            failed = run(session, Files.readString(Path.of(args[args.length - 1])), out);
+        } catch (Exception e) {
+            out.flush();
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        out.flush();
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    public static void testBatch() throws Exception {
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter session = new Interpreter(engine);
+            StringWriter out = new StringWriter();
+            String script = String.join("\n", "let sq = fn (x) => x * x", "", "sq(12)", "undefined(1)",
+                    "sum([sq(x) for x in [0..4]])", "");
+            assert run(session, script, out) == 1;
+            assert out.toString().equals("144\nline 4: Undefined lambda 'undefined'\n14\n");
+            // the session keeps what the batch defined
+            assert session.eval("sq(3)").toString().equals("9");
+
+            // nothing runs if any line doesn't parse
+            boolean parsed = true;
+            try {
+                run(session, "let y = 1\nlet = 2", out);
+            } catch (Exception e) {
+                parsed = !e.getMessage().startsWith("line 2: ");
+            }
+            assert !parsed && session.globals.get("y") == null;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * @version 0.1.0
+ *
+ *          Limits on what a single script of a session may use, and how much
+ *          of each the script currently running has used.
+ *
+ *          <p>
+ *          A step is a call, of a lambda or a builtin. Every loop in the
+ *          language is a call, or a builtin like sum going through a list,
+ *          which counts a step every Builtins.CHECK_EVERY elements. So this
+ *          bounds how long a script runs, and both evaluators count the same
+ *          steps for the same script. The depth is
+ *          the number of lambda calls waiting for a result, which doesn't
+ *          include tail calls. The list size limit is checked wherever a list
+ *          can grow past the size of an existing one: range and concatenation.
+ *          </p>
+ *
+ *          <p>
+ *          A session without a Budget isn't counted at all; the evaluators
+ *          only check that the budget is null.
+ *          </p>
+ */
+class Budget {
+    final long maxSteps;
+    final long maxListSize;
+    final int maxDepth;
+
+    long steps = 0;
+    int depth = 0;
+
+    public Budget(long maxSteps, long maxListSize, int maxDepth) {
+        this.maxSteps = maxSteps;
+        this.maxListSize = maxListSize;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Called before each script, since the limits are per script.
+     */
+    void reset() {
+        steps = 0;
+        depth = 0;
+    }
+
+    void step() throws LimitException {
+        steps += 1;
+        if (steps > maxSteps) {
+            throw new LimitException(String.format("Script took more than %d steps", maxSteps));
+        }
+    }
+
+    void enter() throws LimitException {
+        depth += 1;
+        if (depth > maxDepth) {
+            throw new LimitException(String.format("Recursion deeper than %d calls", maxDepth));
+        }
+    }
+
+    void exit() {
+        depth -= 1;
+    }
+
+    void checkListSize(long size) throws LimitException {
+        if (size > maxListSize) {
+            throw new LimitException(String.format("List of %d elements is longer than %d", size, maxListSize));
+        }
+    }
+
+    /**
+     * Checks the result of an operation that may have made a longer list.
+     */
+    Atom checkList(Atom res) throws LimitException {
+        if (res instanceof Atom.List) {
+            checkListSize(((Atom.List) res).size());
+        }
+        return res;
+    }
+
+    private static String limitMessage(Interpreter i, String expr) throws Exception {
+        try {
+            i.eval(expr);
+        } catch (LimitException e) {
+            return e.getMessage();
+        }
+        return null;
+    }
+
+    public static void testBudget() throws Exception {
+        long[] fibSteps = new long[2];
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter i = new Interpreter(engine);
+            i.eval("let spin = fn (n) => spin(n + 1)");
+            i.eval("let deep = fn (n) => if (n == 0) then (0) else (1 + deep(n - 1))");
+            i.eval("let count = fn (n, acc) => if (n == 0) then (acc) else (count(n - 1, acc + n))");
+            i.eval("let fib = fn (n) => if (n < 2) then (n) else (fib(n - 1) + fib(n - 2))");
+
+            Budget budget = new Budget(100000, 1000, 100);
+            i.setBudget(budget);
+
+            assert limitMessage(i, "spin(0)").equals("Script took more than 100000 steps");
+            assert limitMessage(i, "deep(200)").equals("Recursion deeper than 100 calls");
+            assert limitMessage(i, "fmap(deep, [200])").equals("Recursion deeper than 100 calls");
+            assert limitMessage(i, "[0..10000000]").equals("List of 10000000 elements is longer than 1000");
+            assert limitMessage(i, "[0..600] + [0..600]").equals("List of 1200 elements is longer than 1000");
+            assert limitMessage(i, "\"ab\" + [0..999]").equals("List of 1001 elements is longer than 1000");
+            // builtins that go through a list without calling count steps too
+            i.setBudget(new Budget(1000, Long.MAX_VALUE, 100));
+            assert limitMessage(i, "sum([0..1000000000])").equals("Script took more than 1000 steps");
+            assert limitMessage(i, "reverse(\"ab\" + [0..2000000])").equals("Script took more than 1000 steps");
+            i.setBudget(budget);
+
+            // tail calls don't count towards the depth, and a failed script
+            // doesn't use up the next one's budget
+            assert i.eval("deep(99)").toString().equals("99");
+            assert i.eval("count(50000, 0)").toString().equals("1250025000");
+            assert i.eval("fold(fn (acc, x) => acc + x, 0, [0..1000])").toString().equals("499500");
+
+            // both engines count the call at the top level towards the depth,
+            // so they fail at the same one. deep(n) is n + 1 calls deep, and
+            // wrap's call to deep takes its place
+            i.eval("let wrap = fn (n) => deep(n)");
+            assert limitMessage(i, "deep(99)") == null && limitMessage(i, "wrap(99)") == null;
+            assert limitMessage(i, "deep(100)").equals("Recursion deeper than 100 calls");
+            assert limitMessage(i, "wrap(100)").equals("Recursion deeper than 100 calls");
+
+            // both engines count the same steps
+            i.eval("fib(15)");
+            fibSteps[engine.ordinal()] = budget.steps;
+
+            i.setBudget(null);
+            assert i.eval("[0..10000]").toString().length() > 1000;
+        }
+        assert fibSteps[0] == fibSteps[1] && fibSteps[0] == 1973;
+    }
+}
+
+/**
+ * @version 0.1.0
+ *
+ *          Thrown when a script goes over a limit of its session's Budget.
+ *          The session can still be used afterwards.
+ */
+class LimitException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public LimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,459 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @version 0.1.0
+ *
+ *          Calls a lambda or builtin with arguments that were already
+ *          evaluated.
+ *
+ *          <p>
+ *          Each evaluator has one, so that a builtin like fmap calls back into
+ *          the script the same way the script called it.
+ *          </p>
+ */
+interface Caller {
+    Atom call(String name, Atom callee, Atom[] args) throws Exception;
+
+    /**
+     * The globals of the session the call is made in, which also hold its
+     * Budget.
+     */
+    Globals globals();
+
+    /**
+     * Returns a Caller that another thread can use while this one waits for
+     * it. Calls on it aren't counted by the session's Budget.
+     */
+    Caller fork();
+}
+
+/**
+ * @version 0.1.0
+ *
+ *          The parts of the standard library that are implemented in Java.
+ *
+ *          <p>
+ *          These used to be defined in RustScript, but written as recursion
+ *          over lists they allocate a new list per element and need a Java
+ *          stack frame per element too. They behave the same as the
+ *          RustScript versions did, except that range returns an empty list
+ *          when the end isn't after the start instead of never returning.
+ *          </p>
+ *
+ *          <p>
+ *          range doesn't store the list it returns. A call to fmap or filter
+ *          that's the last argument of a call to fmap, filter, fold, sum or
+ *          product doesn't build its list either: the evaluators pass it on
+ *          as a Seq, and the outer builtin runs its lambda on each element as
+ *          it goes. So sum([x * x for x in [0..n]]) takes constant memory.
+ *          The lambdas are called on the same elements with the same
+ *          arguments, but one element at a time through the whole pipeline
+ *          instead of one builtin at a time.
+ *          </p>
+ */
+class Builtins {
+    /**
+     * The standard library, shared by every session. Builtins are immutable,
+     * so the map can be too.
+     */
+    static final Map<String, Atom> STDLIB = stdlib();
+
+    private static Map<String, Atom> stdlib() {
+        HashMap<String, Atom> globals = new HashMap<>();
+        define(globals, "range", 2, Builtins::range);
+        globals.put("fmap", new Atom.Builtin("fmap", 2, Builtins::fmap, true, true));
+        globals.put("filter", new Atom.Builtin("filter", 2, Builtins::filter, true, true));
+        globals.put("fold", new Atom.Builtin("fold", 3, Builtins::fold, true, false));
+        globals.put("sum", new Atom.Builtin("sum", 1, Builtins::sum, true, false));
+        globals.put("product", new Atom.Builtin("product", 1, Builtins::product, true, false));
+        define(globals, "reverse", 1, Builtins::reverse);
+        define(globals, "pfmap", 2, Builtins::pfmap);
+        define(globals, "pfilter", 2, Builtins::pfilter);
+        define(globals, "preduce", 3, Builtins::preduce);
+        define(globals, "memo", 1, Memo::memo);
+        return Map.copyOf(globals);
+    }
+
+    private static void define(HashMap<String, Atom> globals, String name, int arity, Atom.Builtin.Body body) {
+        globals.put(name, new Atom.Builtin(name, arity, body));
+    }
+
+    // how many elements a builtin goes through between checks, see chunk
+    static final int CHECK_EVERY = 1 << 10;
+
+    /**
+     * Returns where the chunk of a loop over n elements that starts at i
+     * ends. The builtins that don't call a lambda per element go through
+     * their lists a chunk at a time, since theirs are the only loops that
+     * don't go through a call. Between chunks this stops the script if it
+     * was interrupted, and counts a step of the session's Budget, so that a
+     * sum of a huge range is bounded like any other loop.
+     */
+    private static int chunk(Caller caller, int i, int n) throws Exception {
+        if (i > 0) {
+            Expr.LambdaCall.checkInterrupted();
+            Budget budget = caller.globals().budget;
+            if (budget != null) {
+                budget.step();
+            }
+        }
+        return (int) Math.min(n, (long) i + CHECK_EVERY);
+    }
+
+    private static Atom.List list(String name, Atom arg) throws Exception {
+        if (!(arg instanceof Atom.List)) {
+            throw new Exception(String.format("%s expects a list, got %s", name, arg.toString()));
+        }
+        return (Atom.List) arg;
+    }
+
+    static boolean streams(Atom callee) {
+        return callee instanceof Atom.Builtin && ((Atom.Builtin) callee).streams;
+    }
+
+    /**
+     * Whether a call to the global name can be passed to a call to the global
+     * to as a Seq, going by the standard library. The evaluators check again
+     * when they make the call, since either could have been redefined.
+     */
+    static boolean defers(String name, String to) {
+        Atom callee = STDLIB.get(name);
+        return callee instanceof Atom.Builtin && ((Atom.Builtin) callee).defers && streams(STDLIB.get(to));
+    }
+
+    /**
+     * Returns the Seq for a call to callee with args, or null if callee isn't
+     * a builtin whose calls can be deferred.
+     */
+    static Seq defer(Atom callee, Atom[] args) {
+        if (!(callee instanceof Atom.Builtin && ((Atom.Builtin) callee).defers)) {
+            return null;
+        }
+        Atom.Builtin builtin = (Atom.Builtin) callee;
+        return new Seq(builtin.name, builtin.name.equals("filter"), args[0], args[1]);
+    }
+
+    /**
+     * A call to fmap or filter that hasn't been run, which a builtin that
+     * goes through its list once takes in place of the list. It's only ever
+     * passed straight to such a builtin, so no script can see one.
+     */
+    static final class Seq extends Atom {
+        final String name;
+        final boolean filter;
+        final Atom f;
+        // a list or another Seq
+        final Atom source;
+
+        Seq(String name, boolean filter, Atom f, Atom source) {
+            this.name = name;
+            this.filter = filter;
+            this.f = f;
+            this.source = source;
+        }
+
+        public String toString() {
+            return String.format("%s(%s, %s)", name, f, source);
+        }
+    }
+
+    private interface Elements {
+        // null once there are no more
+        Atom next() throws Exception;
+    }
+
+    private static Elements elements(Caller caller, String name, Atom arg) throws Exception {
+        if (arg instanceof Seq) {
+            Seq seq = (Seq) arg;
+            Elements source = elements(caller, seq.name, seq.source);
+            return () -> {
+                for (Atom el = source.next(); el != null; el = source.next()) {
+                    Atom res = caller.call("f", seq.f, new Atom[] { el });
+                    if (!seq.filter) {
+                        return res;
+                    } else if (res.isTruthy()) {
+                        return el;
+                    }
+                }
+                return null;
+            };
+        }
+
+        Atom.List ls = list(name, arg);
+        return new Elements() {
+            int i = 0;
+
+            public Atom next() {
+                return i < ls.size() ? ls.get(i++) : null;
+            }
+        };
+    }
+
+    private static Atom range(Caller caller, Atom[] args) throws Exception {
+        if (!(args[0] instanceof Atom.Val && args[1] instanceof Atom.Val)) {
+            throw new Exception(String.format("range expects two numbers, got %s and %s", args[0], args[1]));
+        }
+        long a = ((Atom.Val) args[0]).val;
+        long b = ((Atom.Val) args[1]).val;
+        if (a >= b) {
+            return new Atom.List();
+        }
+
+        // b - a is negative if it overflowed
+        long len = b - a;
+        if (len < 0 || len > Integer.MAX_VALUE - 8) {
+            throw new Exception(String.format("range(%d, %d) is too long", a, b));
+        }
+        Budget budget = caller.globals().budget;
+        if (budget != null) {
+            budget.checkListSize(len);
+        }
+        return Atom.List.range(a, (int) len);
+    }
+
+    private static Atom fmap(Caller caller, Atom[] args) throws Exception {
+        Atom f = args[0];
+        if (args[1] instanceof Seq) {
+            ArrayList<Atom> items = new ArrayList<>();
+            Elements els = elements(caller, "fmap", args[1]);
+            for (Atom el = els.next(); el != null; el = els.next()) {
+                items.add(caller.call("f", f, new Atom[] { el }));
+            }
+            return new Atom.List(items);
+        }
+
+        Atom.List ls = list("fmap", args[1]);
+        Atom[] items = new Atom[ls.size()];
+        for (int i = 0; i < items.length; i += 1) {
+            items[i] = caller.call("f", f, new Atom[] { ls.get(i) });
+        }
+        return new Atom.List(items);
+    }
+
+    private static Atom filter(Caller caller, Atom[] args) throws Exception {
+        Atom f = args[0];
+        ArrayList<Atom> items = new ArrayList<>();
+        Elements els = elements(caller, "filter", args[1]);
+        for (Atom el = els.next(); el != null; el = els.next()) {
+            if (caller.call("f", f, new Atom[] { el }).isTruthy()) {
+                items.add(el);
+            }
+        }
+        return new Atom.List(items);
+    }
+
+    private static Atom fold(Caller caller, Atom[] args) throws Exception {
+        Atom f = args[0];
+        Atom acc = args[1];
+        Elements els = elements(caller, "fold", args[2]);
+        for (Atom el = els.next(); el != null; el = els.next()) {
+            acc = caller.call("f", f, new Atom[] { acc, el });
+        }
+        return acc;
+    }
+
+    private static Atom sum(Caller caller, Atom[] args) throws Exception {
+        if (args[0] instanceof Seq) {
+            Atom acc = Atom.Val.of(0);
+            Elements els = elements(caller, "sum", args[0]);
+            for (Atom el = els.next(); el != null; el = els.next()) {
+                acc = acc.add(el);
+            }
+            return acc;
+        }
+
+        Atom.List ls = list("sum", args[0]);
+        Atom acc = Atom.Val.of(0);
+        int n = ls.size();
+        int i = 0;
+        if (ls.holdsLongs()) {
+            long total = 0;
+            try {
+                while (i < n) {
+                    for (int end = chunk(caller, i, n); i < end; i += 1) {
+                        total = Math.addExact(total, ls.longAt(i));
+                    }
+                }
+            } catch (ArithmeticException e) {
+                // the rest is added up below, promoting to a Big
+            }
+            acc = Atom.Val.of(total);
+        }
+
+        while (i < n) {
+            for (int end = chunk(caller, i, n); i < end; i += 1) {
+                acc = acc.add(ls.get(i));
+            }
+        }
+        return acc;
+    }
+
+    private static Atom product(Caller caller, Atom[] args) throws Exception {
+        if (args[0] instanceof Seq) {
+            Atom acc = Atom.Val.of(1);
+            Elements els = elements(caller, "product", args[0]);
+            for (Atom el = els.next(); el != null; el = els.next()) {
+                acc = acc.mul(el);
+            }
+            return acc;
+        }
+
+        Atom.List ls = list("product", args[0]);
+        Atom acc = Atom.Val.of(1);
+        int n = ls.size();
+        int i = 0;
+        if (ls.holdsLongs()) {
+            long total = 1;
+            try {
+                while (i < n) {
+                    for (int end = chunk(caller, i, n); i < end; i += 1) {
+                        total = Math.multiplyExact(total, ls.longAt(i));
+                    }
+                }
+            } catch (ArithmeticException e) {
+                // the rest is multiplied below, promoting to a Big
+            }
+            acc = Atom.Val.of(total);
+        }
+
+        while (i < n) {
+            for (int end = chunk(caller, i, n); i < end; i += 1) {
+                acc = acc.mul(ls.get(i));
+            }
+        }
+        return acc;
+    }
+
+    private static Atom reverse(Caller caller, Atom[] args) throws Exception {
+        Atom.List ls = list("reverse", args[0]);
+        if (ls.holdsLongs()) {
+            long[] longs = new long[ls.size()];
+            for (int i = 0; i < longs.length;) {
+                for (int end = chunk(caller, i, longs.length); i < end; i += 1) {
+                    longs[i] = ls.longAt(longs.length - 1 - i);
+                }
+            }
+            return new Atom.List(longs);
+        }
+
+        Atom[] items = new Atom[ls.size()];
+        for (int i = 0; i < items.length;) {
+            for (int end = chunk(caller, i, items.length); i < end; i += 1) {
+                items[i] = ls.get(items.length - 1 - i);
+            }
+        }
+        return new Atom.List(items);
+    }
+
+    // the parallel builtins give the same results as the sequential ones, as
+    // long as the lambdas don't define globals, which they aren't allowed to
+
+    private static Atom pfmap(Caller caller, Atom[] args) throws Exception {
+        Atom f = args[0];
+        Atom.List ls = list("pfmap", args[1]);
+        Atom[] items = new Atom[ls.size()];
+        Parallel.run(caller, items.length, (c, lo, hi) -> {
+            for (int i = lo; i < hi; i += 1) {
+                items[i] = c.call("f", f, new Atom[] { ls.get(i) });
+            }
+        });
+        return new Atom.List(items);
+    }
+
+    private static Atom pfilter(Caller caller, Atom[] args) throws Exception {
+        Atom f = args[0];
+        Atom.List ls = list("pfilter", args[1]);
+        boolean[] keep = new boolean[ls.size()];
+        Parallel.run(caller, keep.length, (c, lo, hi) -> {
+            for (int i = lo; i < hi; i += 1) {
+                keep[i] = c.call("f", f, new Atom[] { ls.get(i) }).isTruthy();
+            }
+        });
+
+        ArrayList<Atom> items = new ArrayList<>();
+        for (int i = 0; i < keep.length;) {
+            for (int end = chunk(caller, i, keep.length); i < end; i += 1) {
+                if (keep[i]) {
+                    items.add(ls.get(i));
+                }
+            }
+        }
+        return new Atom.List(items);
+    }
+
+    /**
+     * Like fold, but each slice of the list is folded starting from the second
+     * argument, and then the results of the slices are folded together with
+     * the same lambda. So the lambda has to be associative and the second
+     * argument has to be its identity, e.g. + and 0.
+     */
+    private static Atom preduce(Caller caller, Atom[] args) throws Exception {
+        Atom f = args[0];
+        Atom identity = args[1];
+        Atom.List ls = list("preduce", args[2]);
+        Atom[] partial = new Atom[(ls.size() + Parallel.SLICE - 1) / Parallel.SLICE];
+        Parallel.run(caller, ls.size(), (c, lo, hi) -> {
+            Atom acc = identity;
+            for (int i = lo; i < hi; i += 1) {
+                acc = c.call("f", f, new Atom[] { acc, ls.get(i) });
+            }
+            partial[lo / Parallel.SLICE] = acc;
+        });
+
+        Atom acc = identity;
+        for (int i = 0; i < partial.length; i += 1) {
+            acc = i == 0 ? partial[0] : caller.call("f", f, new Atom[] { acc, partial[i] });
+        }
+        return acc;
+    }
+
+    private static Atom eval(String expr, Globals globals) throws Exception {
+        return Resolver.resolve(Parser.parseExpr(expr)).eval(new Frame(new Atom[0], null, globals));
+    }
+
+    public static void testBuiltins() throws Exception {
+        Globals globals = new Globals(STDLIB);
+
+        assert eval("range(2, 5)", globals).toString().equals("[2, 3, 4]");
+        assert ((Atom.List) eval("range(5, 5)", globals)).isEmpty();
+        assert ((Atom.List) eval("[0..100000]", globals)).size() == 100000;
+        // ranges aren't stored, until they're concatenated
+        assert ((Atom.List) eval("[0..2000000000]", globals)).get(1999999999).toString().equals("1999999999");
+        assert eval("[0..3] + [3..5]", globals).toString().equals("[0, 1, 2, 3, 4]");
+        assert eval("[1, 2] + $[0..3]", globals).toString().equals("[1, 2, 1, 2]");
+        assert eval("\"ab\" + [0..2]", globals).toString().equals("['a', 'b', 0, 1]");
+
+        assert eval("fmap(fn (x) => x * x, [1, 2, 3])", globals).toString().equals("[1, 4, 9]");
+        // builtins can be passed to builtins
+        assert eval("fmap(reverse, [[1, 2], [3]])", globals).toString().equals("[[2, 1], [3]]");
+
+        assert eval("filter(fn (x) => x > 1, [3, 1, 2])", globals).toString().equals("[3, 2]");
+        assert eval("fold(fn (acc, x) => acc * 10 + x, 0, [1, 2, 3])", globals).toString().equals("123");
+        assert eval("sum([1..5])", globals).toString().equals("10");
+        assert eval("product([1..5])", globals).toString().equals("24");
+        assert eval("product([1..26])", globals).toString().equals("15511210043330985984000000");
+        assert eval("sum([9223372036854775807, 1, -2])", globals).toString().equals("9223372036854775806");
+        assert eval("reverse(\"abc\")", globals).toString().equals("\"cba\"");
+
+        // the parallel builtins match the sequential ones, split or not
+        assert eval("pfmap(fn (x) => x * x, [1, 2, 3])", globals).toString().equals("[1, 4, 9]");
+        assert eval("pfmap(fn (x) => x * 2, [0..5000])", globals).toString()
+                .equals(eval("fmap(fn (x) => x * 2, [0..5000])", globals).toString());
+        assert eval("pfilter(fn (x) => x % 7 == 0, [0..5000])", globals).toString()
+                .equals(eval("filter(fn (x) => x % 7 == 0, [0..5000])", globals).toString());
+        assert eval("preduce(fn (a, b) => a + b, 0, [0..5000])", globals).toString().equals("12497500");
+        assert eval("preduce(fn (a, b) => a + b, 0, [])", globals).toString().equals("0");
+        assert eval("pfmap(fn (ls) => sum(pfmap(fn (x) => x, ls)), [[0..2000], [1, 2]])", globals).toString()
+                .equals("[1999000, 3]");
+
+        boolean threw = false;
+        try {
+            eval("fmap(fn (a, b) => a, [1])", globals);
+        } catch (Exception e) {
+            threw = e.getMessage().equals("Expected 2 arguments to call of lambda f, got 1");
+        }
+        assert threw;
+    }
+}
@@ -0,0 +1,549 @@
+import java.util.ArrayList;
+
+/**
+ * @version 0.1.0
+ *
+ *          The instruction set of the bytecode VM.
+ *
+ *          <p>
+ *          Every instruction is an opcode followed by a fixed number of int
+ *          operands, all stored inline in a Chunk's code array.
+ *          </p>
+ */
+final class Op {
+    // operand: constant index
+    static final int Const = 0;
+    // operand: slot
+    static final int LoadLocal = 1;
+    // operands: depth, slot
+    static final int LoadOuter = 2;
+    // operand: name index
+    static final int LoadGlobal = 3;
+    // operand: name index
+    static final int StoreGlobal = 4;
+
+    static final int Add = 5;
+    static final int Sub = 6;
+    static final int Mul = 7;
+    static final int Div = 8;
+    static final int Mod = 9;
+    static final int LT = 10;
+    static final int GT = 11;
+    static final int EQ = 12;
+
+    static final int Negate = 13;
+    static final int Head = 14;
+    static final int Tail = 15;
+
+    // operand: element count
+    static final int MakeList = 16;
+    // operand: proto index
+    static final int Closure = 17;
+
+    // operand: absolute target
+    static final int Jump = 18;
+    // operand: absolute target
+    static final int JumpIfFalse = 19;
+
+    // operands: argument count, name index
+    static final int Call = 20;
+    static final int Return = 21;
+
+    // superinstructions for the most common sequences; each one saves a
+    // dispatch and, for the comparisons, the intermediate Bool
+
+    // operands: argument count, name index
+    static final int CallGlobal = 22;
+    // operand: absolute target
+    static final int JumpIfNotLT = 23;
+    static final int JumpIfNotGT = 24;
+    static final int JumpIfNotEQ = 25;
+
+    // operands: slot, constant index
+    static final int AddLocalConst = 26;
+    static final int SubLocalConst = 27;
+    // operands: slot, constant index, absolute target
+    static final int JumpIfNotLTLocalConst = 28;
+    static final int JumpIfNotGTLocalConst = 29;
+    static final int JumpIfNotEQLocalConst = 30;
+
+    // operands: argument count, name index. Like CALL and CALL_GLOBAL, but in
+    // tail position, so a lambda replaces the current call instead of
+    // returning to it. A builtin's result is returned by the RETURN after it.
+    static final int TailCall = 31;
+    static final int TailCallGlobal = 32;
+
+    // operands: argument count, name index, name index of the global being
+    // called with the result. Like CALL_GLOBAL, but pushes a Builtins.Seq
+    // instead if both are builtins that allow it.
+    static final int DeferGlobal = 33;
+
+    static final String[] NAMES = { "CONST", "LOAD_LOCAL", "LOAD_OUTER", "LOAD_GLOBAL", "STORE_GLOBAL", "ADD", "SUB",
+            "MUL", "DIV", "MOD", "LT", "GT", "EQ", "NEGATE", "HEAD", "TAIL", "MAKE_LIST", "CLOSURE", "JUMP",
+            "JUMP_IF_FALSE", "CALL", "RETURN", "CALL_GLOBAL", "JUMP_IF_NOT_LT", "JUMP_IF_NOT_GT", "JUMP_IF_NOT_EQ",
+            "ADD_LOCAL_CONST", "SUB_LOCAL_CONST", "JUMP_IF_NOT_LT_LOCAL_CONST", "JUMP_IF_NOT_GT_LOCAL_CONST",
+            "JUMP_IF_NOT_EQ_LOCAL_CONST", "TAIL_CALL", "TAIL_CALL_GLOBAL", "DEFER_GLOBAL", };
+
+    static final int[] OPERANDS = { 1, 1, 2, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 0, 2, 1, 1, 1, 2,
+            2, 3, 3, 3, 2, 2, 3, };
+
+    private Op() {
+    }
+}
+
+/**
+ * @version 0.1.0
+ *
+ *          A Chunk is the compiled form of either a top level expression or a
+ *          lambda body.
+ *
+ *          <p>
+ *          Besides the code itself it carries a constant pool for literals, a
+ *          table of global names, and the chunks of any lambdas defined inside
+ *          of it.
+ *          </p>
+ */
+class Chunk {
+    final int[] code;
+    final Atom[] constants;
+    final String[] names;
+    final Chunk[] protos;
+
+    final int arity;
+    final int slots;
+    final int maxStack;
+
+    // kept so that closures created from this chunk can still be printed and
+    // evaluated by the tree walking interpreter
+    final Expr expr;
+    final ArrayList<String> argNames;
+
+    public Chunk(int[] code, Atom[] constants, String[] names, Chunk[] protos, int arity, int slots, int maxStack,
+            Expr expr, ArrayList<String> argNames) {
+        this.code = code;
+        this.constants = constants;
+        this.names = names;
+        this.protos = protos;
+        this.arity = arity;
+        this.slots = slots;
+        this.maxStack = maxStack;
+        this.expr = expr;
+        this.argNames = argNames;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc];
+            sb.append(pc).append(' ').append(Op.NAMES[op]);
+            for (int i = 1; i <= Op.OPERANDS[op]; i += 1) {
+                sb.append(' ').append(code[pc + i]);
+            }
+            sb.append('\n');
+            pc += 1 + Op.OPERANDS[op];
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * @version 0.1.0
+ *
+ *          The Compiler turns an Expr AST into a Chunk for the VM.
+ *
+ *          <p>
+ *          It expects an Expr that has already been through the Resolver:
+ *          lambda arguments become slot indices into the lambda's Frame,
+ *          arguments of enclosing lambdas a (depth, slot) pair, and everything
+ *          else is looked up by name in the globals at runtime.
+ *          </p>
+ */
+class Compiler {
+    private int[] code = new int[16];
+    private int length = 0;
+
+    private final ArrayList<Atom> constants = new ArrayList<>();
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<Chunk> protos = new ArrayList<>();
+
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    private void emit(int op, int stackEffect) {
+        if (length == code.length) {
+            int[] grown = new int[code.length * 2];
+            System.arraycopy(code, 0, grown, 0, length);
+            code = grown;
+        }
+        code[length] = op;
+        length += 1;
+
+        stackDepth += stackEffect;
+        if (stackDepth > maxStack) {
+            maxStack = stackDepth;
+        }
+    }
+
+    private void emit(int op, int operand, int stackEffect) {
+        emit(op, stackEffect);
+        emit(operand, 0);
+    }
+
+    private int constant(Atom atom) {
+        constants.add(atom);
+        return constants.size() - 1;
+    }
+
+    private int name(String name) {
+        int idx = names.indexOf(name);
+        if (idx == -1) {
+            // interned so that looking up globals usually hits the identity check
+            // in HashMap instead of comparing characters
+            names.add(name.intern());
+            idx = names.size() - 1;
+        }
+        return idx;
+    }
+
+    private void emitLoadLocal(int depth, int slot) {
+        if (depth == 0) {
+            emit(Op.LoadLocal, slot, 1);
+        } else {
+            emit(Op.LoadOuter, 1);
+            emit(depth, 0);
+            emit(slot, 0);
+        }
+    }
+
+    /**
+     * Returns the slot of expr if it's a variable that lives in this lambda's own
+     * frame, otherwise -1.
+     */
+    private static int ownSlot(Expr expr) {
+        if (expr instanceof Expr.AtomicExpr && ((Expr.AtomicExpr) expr).val instanceof Atom.Ident) {
+            Atom.Ident v = (Atom.Ident) ((Expr.AtomicExpr) expr).val;
+            return v.depth == 0 ? v.slot : -1;
+        }
+        return -1;
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.AtomicExpr && ((Expr.AtomicExpr) expr).val instanceof Atom.Val;
+    }
+
+    /**
+     * Compiles an expression whose value is returned from the chunk. Branches of
+     * an if expression in this position return directly instead of jumping to a
+     * shared return, and calls the Resolver marked as tail calls become tail
+     * calls. A call at the top level of a script isn't one, so that it counts
+     * towards the Budget's depth like it does on the tree walker.
+     */
+    private void compileTail(Expr expr) throws Exception {
+        if (expr instanceof Expr.IfExpr) {
+            Expr.IfExpr e = (Expr.IfExpr) expr;
+            ArrayList<Integer> elseJumps = compileCondJump(e.cond);
+
+            int depth = stackDepth;
+            compileTail(e.lhs);
+
+            patch(elseJumps);
+            stackDepth = depth;
+            compileTail(e.rhs);
+        } else if (expr instanceof Expr.LambdaCall) {
+            Expr.LambdaCall e = (Expr.LambdaCall) expr;
+            compileCall(e, e.tail);
+            emit(Op.Return, -1);
+        } else {
+            compileExpr(expr);
+            emit(Op.Return, -1);
+        }
+    }
+
+    private void compileCall(Expr.LambdaCall e, boolean tail) throws Exception {
+        compileCall(e, tail, null);
+    }
+
+    /**
+     * deferTo is the name of the global this is the last argument of, if the
+     * call can be deferred.
+     */
+    private void compileCall(Expr.LambdaCall e, boolean tail, String deferTo) throws Exception {
+        boolean local = e.slot != -1;
+        if (local) {
+            emitLoadLocal(e.depth, e.slot);
+        }
+        int argc = e.variables.size();
+        for (int i = 0; i < argc; i += 1) {
+            if (e.deferLast && i == argc - 1) {
+                compileCall((Expr.LambdaCall) e.variables.get(i), false, e.name);
+            } else {
+                compileExpr(e.variables.get(i));
+            }
+        }
+        if (deferTo != null) {
+            emit(Op.DeferGlobal, 1 - argc);
+            emit(argc, 0);
+            emit(name(e.name), 0);
+            emit(name(deferTo), 0);
+            return;
+        }
+        if (local) {
+            emit(tail ? Op.TailCall : Op.Call, -argc);
+        } else {
+            emit(tail ? Op.TailCallGlobal : Op.CallGlobal, 1 - argc);
+        }
+        emit(argc, 0);
+        emit(name(e.name), 0);
+    }
+
+    private void compileExpr(Expr expr) throws Exception {
+        if (expr instanceof Expr.AtomicExpr) {
+            compileAtom(((Expr.AtomicExpr) expr).val);
+        } else if (expr instanceof Expr.ListExpr) {
+            ArrayList<Expr> elements = ((Expr.ListExpr) expr).elements;
+            for (Expr element : elements) {
+                compileExpr(element);
+            }
+            emit(Op.MakeList, elements.size(), 1 - elements.size());
+        } else if (expr instanceof Expr.PrefixExpr) {
+            Expr.PrefixExpr e = (Expr.PrefixExpr) expr;
+            compileExpr(e.rhs);
+            switch (e.op) {
+                case Negate -> emit(Op.Negate, 0);
+                case Head -> emit(Op.Head, 0);
+                case Tail -> emit(Op.Tail, 0);
+            }
+        } else if (expr instanceof Expr.BinaryExpr) {
+            Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+            if (e.op == BinOp.And || e.op == BinOp.Or) {
+                // branches like an if, so the right hand side may not run
+                ArrayList<Integer> falseJumps = compileCondJump(e);
+                emit(Op.Const, constant(Atom.Bool.TRUE), 1);
+                emit(Op.Jump, 0, 0);
+                int endJump = length - 1;
+                patch(falseJumps);
+                stackDepth -= 1;
+                emit(Op.Const, constant(Atom.Bool.FALSE), 1);
+                code[endJump] = length;
+                return;
+            }
+
+            int slot = ownSlot(e.lhs);
+            if (slot != -1 && isNumber(e.rhs) && (e.op == BinOp.Add || e.op == BinOp.Sub)) {
+                emit(e.op == BinOp.Add ? Op.AddLocalConst : Op.SubLocalConst, 1);
+                emit(slot, 0);
+                emit(constant(((Expr.AtomicExpr) e.rhs).val), 0);
+                return;
+            }
+
+            compileExpr(e.lhs);
+            compileExpr(e.rhs);
+            int op = switch (e.op) {
+                case Add -> Op.Add;
+                case Sub -> Op.Sub;
+                case Mul -> Op.Mul;
+                case Div -> Op.Div;
+                case Mod -> Op.Mod;
+                case LT -> Op.LT;
+                case GT -> Op.GT;
+                case EQ -> Op.EQ;
+                case And, Or -> throw new IllegalStateException();
+            };
+            emit(op, -1);
+        } else if (expr instanceof Expr.IfExpr) {
+            Expr.IfExpr e = (Expr.IfExpr) expr;
+            ArrayList<Integer> elseJumps = compileCondJump(e.cond);
+
+            int depth = stackDepth;
+            compileExpr(e.lhs);
+            emit(Op.Jump, 0, 0);
+            int endJump = length - 1;
+
+            patch(elseJumps);
+            stackDepth = depth;
+            compileExpr(e.rhs);
+            code[endJump] = length;
+        } else if (expr instanceof Expr.LambdaCall) {
+            compileCall((Expr.LambdaCall) expr, false);
+        } else if (expr instanceof Expr.AssignExpr) {
+            Expr.AssignExpr e = (Expr.AssignExpr) expr;
+            compileExpr(e.rhs);
+            emit(Op.StoreGlobal, name(e.lhs), 0);
+        } else if (expr instanceof Expr.LambdaExpr) {
+            Expr.LambdaExpr e = (Expr.LambdaExpr) expr;
+            protos.add(new Compiler().finish(e.expr, e.argNames));
+            emit(Op.Closure, protos.size() - 1, 1);
+        } else {
+            throw new Exception(String.format("Can't compile %s", expr.toString()));
+        }
+    }
+
+    /**
+     * Compiles the condition of an if expression followed by jumps that are
+     * taken when it's false, and returns where their targets go for the caller
+     * to patch. && and || become jumps too, so the Bools they'd make are never
+     * pushed and their right hand side is skipped when it's not needed.
+     */
+    private ArrayList<Integer> compileCondJump(Expr cond) throws Exception {
+        ArrayList<Integer> jumps = new ArrayList<>();
+        if (cond instanceof Expr.BinaryExpr) {
+            Expr.BinaryExpr e = (Expr.BinaryExpr) cond;
+            if (e.op == BinOp.And) {
+                jumps.addAll(compileCondJump(e.lhs));
+                jumps.addAll(compileCondJump(e.rhs));
+                return jumps;
+            } else if (e.op == BinOp.Or) {
+                ArrayList<Integer> lhsFalse = compileCondJump(e.lhs);
+                emit(Op.Jump, 0, 0);
+                int trueJump = length - 1;
+                patch(lhsFalse);
+                jumps.addAll(compileCondJump(e.rhs));
+                code[trueJump] = length;
+                return jumps;
+            }
+
+            int op = switch (e.op) {
+                case LT -> Op.JumpIfNotLT;
+                case GT -> Op.JumpIfNotGT;
+                case EQ -> Op.JumpIfNotEQ;
+                default -> -1;
+            };
+            int slot = ownSlot(e.lhs);
+            if (op != -1 && slot != -1 && isNumber(e.rhs)) {
+                emit(op + (Op.JumpIfNotLTLocalConst - Op.JumpIfNotLT), 0);
+                emit(slot, 0);
+                emit(constant(((Expr.AtomicExpr) e.rhs).val), 0);
+                emit(0, 0);
+                jumps.add(length - 1);
+                return jumps;
+            }
+            if (op != -1) {
+                compileExpr(e.lhs);
+                compileExpr(e.rhs);
+                emit(op, 0, -2);
+                jumps.add(length - 1);
+                return jumps;
+            }
+        }
+        compileExpr(cond);
+        emit(Op.JumpIfFalse, 0, -1);
+        jumps.add(length - 1);
+        return jumps;
+    }
+
+    // points the jumps at the next instruction
+    private void patch(ArrayList<Integer> jumps) {
+        for (int at : jumps) {
+            code[at] = length;
+        }
+    }
+
+    private void compileAtom(Atom val) throws Exception {
+        if (val instanceof Atom.Ident) {
+            Atom.Ident v = (Atom.Ident) val;
+            if (v.slot != -1) {
+                emitLoadLocal(v.depth, v.slot);
+            } else {
+                emit(Op.LoadGlobal, name(v.name), 1);
+            }
+        } else {
+            emit(Op.Const, constant(val), 1);
+        }
+    }
+
+    private Chunk finish(Expr expr, ArrayList<String> argNames) throws Exception {
+        compileTail(expr);
+
+        int[] trimmed = new int[length];
+        System.arraycopy(code, 0, trimmed, 0, length);
+
+        return new Chunk(trimmed, constants.toArray(new Atom[0]), names.toArray(new String[0]),
+                protos.toArray(new Chunk[0]), argNames.size(), argNames.size(), maxStack, expr, argNames);
+    }
+
+    /**
+     * Compiles a resolved top level expression.
+     */
+    public static Chunk compile(Expr expr) throws Exception {
+        return new Compiler().finish(expr, new ArrayList<>());
+    }
+
+    /**
+     * Compiles a lambda that wasn't created by the VM, e.g. one defined while the
+     * interpreter was using the tree walking evaluator.
+     */
+    public static Chunk compileLambda(Atom.Lambda lambda) throws Exception {
+        return new Compiler().finish(lambda.expr, lambda.argNames);
+    }
+
+    private static Chunk compileSource(String expr) throws Exception {
+        return Compiler.compile(Resolver.resolve(Parser.parseExpr(expr)));
+    }
+
+    public static void testCompiler() throws Exception {
+        {
+            // constants, arithmetic and globals
+            Chunk c = compileSource("x + 3 * 5");
+            assert c.toString().equals("0 LOAD_GLOBAL 0\n2 CONST 0\n4 CONST 1\n6 MUL\n7 ADD\n8 RETURN\n");
+            assert c.names[0].equals("x");
+            assert c.maxStack == 3;
+        }
+
+        {
+            // if expressions jump over the branch that isn't taken, branches in
+            // tail position return directly
+            Chunk c = compileSource("if (true) then (1) else (2)");
+            assert c.toString().equals("0 CONST 0\n2 JUMP_IF_FALSE 7\n4 CONST 1\n6 RETURN\n7 CONST 2\n9 RETURN\n");
+            assert c.maxStack == 1;
+
+            Chunk nested = compileSource("1 + (if (true) then (1) else (2))");
+            assert nested.toString().equals(
+                    "0 CONST 0\n2 CONST 1\n4 JUMP_IF_FALSE 10\n6 CONST 2\n8 JUMP 12\n10 CONST 3\n12 ADD\n13 RETURN\n");
+            assert nested.maxStack == 2;
+
+            // comparisons branch directly
+            Chunk cmp = compileSource("if (x < 2) then (1) else (2)");
+            assert cmp.toString().equals(
+                    "0 LOAD_GLOBAL 0\n2 CONST 0\n4 JUMP_IF_NOT_LT 9\n6 CONST 1\n8 RETURN\n9 CONST 2\n11 RETURN\n");
+
+            // && and || are jumps too
+            Chunk and = compileSource("if (x < 2 && y) then (1) else (2)");
+            assert and.toString().equals("0 LOAD_GLOBAL 0\n2 CONST 0\n4 JUMP_IF_NOT_LT 13\n6 LOAD_GLOBAL 1\n"
+                    + "8 JUMP_IF_FALSE 13\n10 CONST 1\n12 RETURN\n13 CONST 2\n15 RETURN\n");
+            Chunk or = compileSource("x || y");
+            assert or.toString().equals("0 LOAD_GLOBAL 0\n2 JUMP_IF_FALSE 6\n4 JUMP 10\n6 LOAD_GLOBAL 1\n"
+                    + "8 JUMP_IF_FALSE 14\n10 CONST 0\n12 JUMP 16\n14 CONST 1\n16 RETURN\n");
+            assert or.maxStack == 1;
+
+            Chunk cmpLocal = compileSource("fn (n) => if (n < 2) then (1) else (n)").protos[0];
+            assert cmpLocal.toString().equals(
+                    "0 JUMP_IF_NOT_LT_LOCAL_CONST 0 0 7\n4 CONST 1\n6 RETURN\n7 LOAD_LOCAL 0\n9 RETURN\n");
+        }
+
+        {
+            // arguments are slots, the lambda's own name is a global
+            Chunk c = compileSource("let f = fn (n) => f(n - 1)");
+            Chunk f = c.protos[0];
+            assert f.arity == 1;
+            assert f.toString().equals("0 SUB_LOCAL_CONST 0 0\n3 TAIL_CALL_GLOBAL 1 0\n6 RETURN\n");
+
+            // only calls in tail position are tail calls
+            Chunk g = compileSource("fn (n) => g(n) + 1").protos[0];
+            assert g.toString().equals("0 LOAD_LOCAL 0\n2 CALL_GLOBAL 1 0\n5 CONST 0\n7 ADD\n8 RETURN\n");
+        }
+
+        {
+            // constant list literals are already built, others are built at run time
+            assert compileSource("[1, [2]]").toString().equals("0 CONST 0\n2 RETURN\n");
+            assert compileSource("[x, 2]").toString().equals("0 LOAD_GLOBAL 0\n2 CONST 0\n4 MAKE_LIST 2\n6 RETURN\n");
+        }
+
+        {
+            // a list comprehension's lambda reaches the enclosing lambda's arguments
+            Chunk c = compileSource("fn (n) => [x * n for x in [0..n]]");
+            Chunk comp = c.protos[0].protos[0];
+            assert comp.toString().equals("0 LOAD_LOCAL 0\n2 LOAD_OUTER 1 0\n5 MUL\n6 RETURN\n");
+        }
+    }
+}
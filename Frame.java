@@ -0,0 +1,40 @@
+/**
+ * @version 0.1.0
+ *
+ *          A Frame holds the local variables of a single lambda call.
+ *
+ *          <p>
+ *          Locals are addressed by slot index instead of by name, and a frame
+ *          links to the frame its lambda was created in so that nested lambdas
+ *          can reach variables of the enclosing lambda by walking up a known
+ *          number of parents. Globals are shared by every frame of a run and
+ *          are still looked up by name.
+ *          </p>
+ */
+class Frame {
+    final Atom[] slots;
+    final Frame parent;
+    final Globals globals;
+
+    // a call in tail position leaves its callee and arguments here and returns
+    // Expr.LambdaCall.TAIL_CALL, so that the caller's loop makes the call
+    // instead of the Java stack growing
+    Atom tailCallee;
+    Atom[] tailArgs;
+    // the name the tail call was made by, for the session's Profile
+    String tailName;
+
+    public Frame(Atom[] slots, Frame parent, Globals globals) {
+        this.slots = slots;
+        this.parent = parent;
+        this.globals = globals;
+    }
+
+    public Frame up(int depth) {
+        Frame f = this;
+        for (int i = 0; i < depth; i += 1) {
+            f = f.parent;
+        }
+        return f;
+    }
+}
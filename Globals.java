@@ -0,0 +1,98 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @version 0.1.0
+ *
+ *          The global variables of one session.
+ *
+ *          <p>
+ *          Every session starts out with the standard library, which is one
+ *          immutable map shared by all of them. A session reads straight from
+ *          that map until its first let, which copies it into a map of its
+ *          own, so starting a session costs one small object and a session
+ *          that never defines anything costs nothing more. Nothing here is
+ *          locked: a session is only run by one thread at a time, and the
+ *          shared map is never written to.
+ *          </p>
+ */
+class Globals {
+    private Map<String, Atom> vars;
+    private boolean shared;
+
+    // the session's limits, or null if it has none. They're kept here since
+    // every frame can reach its session's globals.
+    Budget budget;
+
+    // the session's Profile, or null if it isn't being profiled
+    Profile profile;
+
+    // how many parallel builtins of the session are running. Other threads
+    // read the globals while they do, so they can't be written to.
+    final AtomicInteger parallel = new AtomicInteger();
+
+    // changes on every put, and no two sessions ever have the same one, so a
+    // call can tell that a global it looked up before is still the same
+    // without keeping the session alive
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    long version = VERSIONS.incrementAndGet();
+
+    public Globals() {
+        this(Map.of());
+    }
+
+    /**
+     * base has to be immutable, or at least never changed again, since it's
+     * only copied once this is written to.
+     */
+    public Globals(Map<String, Atom> base) {
+        this.vars = base;
+        this.shared = true;
+    }
+
+    public Atom get(String name) {
+        return vars.get(name);
+    }
+
+    /**
+     * Every global, the standard library's included. It can't be changed
+     * through this, and put may replace it with a copy.
+     */
+    public Map<String, Atom> all() {
+        return Collections.unmodifiableMap(vars);
+    }
+
+    public void put(String name, Atom val) throws Exception {
+        if (parallel.get() > 0) {
+            throw new Exception(String.format("Can't define %s while a parallel builtin is running", name));
+        }
+        if (shared) {
+            vars = new HashMap<>(vars);
+            shared = false;
+        }
+        vars.put(name, val);
+        version = VERSIONS.incrementAndGet();
+    }
+
+    public static void testGlobals() throws Exception {
+        Map<String, Atom> base = Map.of("x", Atom.Val.of(1));
+        Globals a = new Globals(base);
+        Globals b = new Globals(base);
+        assert a.get("x") == base.get("x");
+
+        // writes go to a copy, so neither the base nor other sessions see them
+        a.put("x", Atom.Val.of(2));
+        a.put("y", Atom.Val.of(3));
+        assert ((Atom.Val) a.get("x")).val == 2 && ((Atom.Val) a.get("y")).val == 3;
+        assert ((Atom.Val) b.get("x")).val == 1 && b.get("y") == null;
+        assert base.size() == 1;
+
+        long version = a.version;
+        assert version != b.version;
+        a.put("y", Atom.Val.of(4));
+        assert a.version != version;
+    }
+}
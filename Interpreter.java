@@ -1,5 +1,16 @@
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Mikail Khan <mikail@mikail-khan.com>
@@ -18,24 +29,89 @@ import java.util.HashMap;
  */
 abstract class Atom {
     public static class Val extends Atom {
-        int val;
+        long val;
+
+        // like Integer.valueOf, small numbers are shared instead of allocated
+        // every time. The upper bound can be raised with
+        // -Drustscript.smallint.high=N
+        private static final int CACHE_LOW = -128;
+        private static final int CACHE_HIGH = Math.max(127, Integer.getInteger("rustscript.smallint.high", 1024));
+        private static final Val[] CACHE = new Val[CACHE_HIGH - CACHE_LOW + 1];
+
+        static {
+            for (int i = 0; i < CACHE.length; i += 1) {
+                CACHE[i] = new Val(CACHE_LOW + i);
+            }
+        }
 
-        public Val(int val) {
+        public Val(long val) {
             this.val = val;
         }
 
+        public static Val of(long val) {
+            long i = val - CACHE_LOW;
+            return i >= 0 && i < CACHE.length ? CACHE[(int) i] : new Val(val);
+        }
+
+        // like every value, a Val is equal to any other with the same value,
+        // so atoms can be the keys of a map. Lambdas and builtins are only
+        // equal to themselves.
+        public boolean equals(Object o) {
+            return o instanceof Val && ((Val) o).val == val;
+        }
+
+        public int hashCode() {
+            return Long.hashCode(val);
+        }
+
         public String toString() {
             return String.valueOf(val);
         }
     }
 
+    /**
+     * An integer that doesn't fit in a long. Arithmetic on Vals promotes to a
+     * Big when it overflows, and a result that fits in a long is always a
+     * Val again, so every number has exactly one representation.
+     */
+    public static class Big extends Atom {
+        BigInteger val;
+
+        private Big(BigInteger val) {
+            this.val = val;
+        }
+
+        public static Atom of(BigInteger val) {
+            return val.bitLength() < 64 ? Val.of(val.longValue()) : new Big(val);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Big && ((Big) o).val.equals(val);
+        }
+
+        public int hashCode() {
+            return val.hashCode();
+        }
+
+        public String toString() {
+            return val.toString();
+        }
+    }
+
     public static class Bool extends Atom {
         boolean val;
 
-        public Bool(boolean val) {
+        public static final Bool TRUE = new Bool(true);
+        public static final Bool FALSE = new Bool(false);
+
+        private Bool(boolean val) {
             this.val = val;
         }
 
+        public static Bool of(boolean val) {
+            return val ? TRUE : FALSE;
+        }
+
         public String toString() {
             return String.valueOf(val);
         }
@@ -43,62 +119,464 @@ abstract class Atom {
     
     public static class Char extends Atom {
     	char val;
+
+        // the ASCII characters are shared, since strings are mostly made of them
+        private static final Char[] CACHE = new Char[128];
+
+        static {
+            for (int i = 0; i < CACHE.length; i += 1) {
+                CACHE[i] = new Char((char) i);
+            }
+        }
     	
     	public Char(char val) {
             this.val = val;
         }
 
+        public static Char of(char val) {
+            return val < CACHE.length ? CACHE[val] : new Char(val);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Char && ((Char) o).val == val;
+        }
+
+        public int hashCode() {
+            return val;
+        }
+
         public String toString() {
             return '\'' + String.valueOf(val) + '\'';
         }
     }
 
+    /**
+     * A persistent list.
+     *
+     * <p>
+     * A list is a view of a range of a shared Buffer, so taking the tail is
+     * just a narrower view of the same buffer. Nothing ever changes an element
+     * that's part of a list, but the space on either side of everything that's
+     * been handed out so far is free, and a list that reaches the edge of
+     * that space can claim it to grow without copying. That makes the
+     * usual [x] + rest and acc + [x] patterns amortized O(1) per element.
+     * </p>
+     *
+     * <p>
+     * Lists of only numbers or only characters are stored unboxed, in a long[]
+     * or a char[]. Any other list, or the concatenation of two lists that are
+     * stored differently, is stored as an Atom[]. A range doesn't store its
+     * elements at all, they're computed from its first one, so it takes the
+     * same space however long it is until something is concatenated to it.
+     * </p>
+     */
     public static class List extends Atom {
-        ArrayList<Expr> list;
+        private static final class Buffer {
+            // exactly one of these holds the elements, or none of them for a
+            // range, whose elements are base, base + 1, ...
+            final Atom[] atoms;
+            final long[] longs;
+            final char[] chars;
+            final long base;
+            final int capacity;
+
+            // [lo, hi) is in use by at least one list
+            int lo;
+            int hi;
+
+            private Buffer(Atom[] atoms, long[] longs, char[] chars, long base, int capacity, int lo, int hi) {
+                this.atoms = atoms;
+                this.longs = longs;
+                this.chars = chars;
+                this.base = base;
+                this.capacity = capacity;
+                this.lo = lo;
+                this.hi = hi;
+            }
+
+            Buffer(Atom[] atoms, int lo, int hi) {
+                this(atoms, null, null, 0, atoms.length, lo, hi);
+            }
+
+            Buffer(long[] longs, int lo, int hi) {
+                this(null, longs, null, 0, longs.length, lo, hi);
+            }
+
+            Buffer(char[] chars, int lo, int hi) {
+                this(null, null, chars, 0, chars.length, lo, hi);
+            }
+
+            // full, so that nothing can claim space next to it
+            Buffer(long base, int n) {
+                this(null, null, null, base, n, 0, n);
+            }
+
+            // stores items unboxed if they're all numbers or all characters
+            static Buffer of(Atom[] items) {
+                boolean vals = true;
+                boolean chars = items.length > 0;
+                for (Atom item : items) {
+                    vals &= item instanceof Val;
+                    chars &= item instanceof Char;
+                }
+
+                if (vals && items.length > 0) {
+                    long[] longs = new long[items.length];
+                    for (int i = 0; i < items.length; i += 1) {
+                        longs[i] = ((Val) items[i]).val;
+                    }
+                    return new Buffer(longs, 0, longs.length);
+                } else if (chars) {
+                    char[] cs = new char[items.length];
+                    for (int i = 0; i < items.length; i += 1) {
+                        cs[i] = ((Char) items[i]).val;
+                    }
+                    return new Buffer(cs, 0, cs.length);
+                } else {
+                    return new Buffer(items, 0, items.length);
+                }
+            }
+
+            boolean holdsLongs() {
+                return atoms == null && chars == null;
+            }
+
+            long longAt(int i) {
+                return longs != null ? longs[i] : base + i;
+            }
+
+            // an empty buffer that stores elements the same way as this one,
+            // which for a range is a long[]
+            Buffer like(int capacity, int lo, int hi) {
+                if (holdsLongs()) {
+                    return new Buffer(new long[capacity], lo, hi);
+                } else if (chars != null) {
+                    return new Buffer(new char[capacity], lo, hi);
+                } else {
+                    return new Buffer(new Atom[capacity], lo, hi);
+                }
+            }
+
+            boolean sameKind(Buffer other) {
+                return holdsLongs() == other.holdsLongs() && (chars == null) == (other.chars == null);
+            }
+
+            Atom get(int i) {
+                if (holdsLongs()) {
+                    return Val.of(longAt(i));
+                } else if (chars != null) {
+                    return Char.of(chars[i]);
+                } else {
+                    return atoms[i];
+                }
+            }
+
+            // src has to be the same kind of buffer, and this can't be a range
+            void copy(Buffer src, int from, int to, int n) {
+                if (longs != null && src.longs == null) {
+                    for (int i = 0; i < n; i += 1) {
+                        longs[to + i] = src.base + from + i;
+                    }
+                } else if (longs != null) {
+                    System.arraycopy(src.longs, from, longs, to, n);
+                } else if (chars != null) {
+                    System.arraycopy(src.chars, from, chars, to, n);
+                } else {
+                    System.arraycopy(src.atoms, from, atoms, to, n);
+                }
+            }
+
+            // a list can only grow into the free space if nothing else claimed
+            // it first, and lists can be shared between threads
+            synchronized boolean claimFront(int start, int n) {
+                if (start == lo && lo >= n) {
+                    lo -= n;
+                    return true;
+                }
+                return false;
+            }
+
+            synchronized boolean claimBack(int end, int n) {
+                if (end == hi && capacity - hi >= n) {
+                    hi += n;
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        private static final Buffer EMPTY = new Buffer(new Atom[0], 0, 0);
+
+        private final Buffer buf;
+        private final int start;
+        private final int end;
+        // 0 until hashCode is first called, like String's
+        private int hash;
+
+        private List(Buffer buf, int start, int end) {
+            this.buf = buf;
+            this.start = start;
+            this.end = end;
+        }
+
+        private List(Buffer buf) {
+            this(buf, buf.lo, buf.hi);
+        }
+
+        public List() {
+            this(EMPTY);
+        }
+
+        // takes ownership of items
+        public List(Atom[] items) {
+            this(Buffer.of(items));
+        }
+
+        public List(ArrayList<Atom> items) {
+            this(items.toArray(new Atom[0]));
+        }
+
+        // takes ownership of longs
+        public List(long[] longs) {
+            this(new Buffer(longs, 0, longs.length));
+        }
+
+        public List(String str) {
+            this(new Buffer(str.toCharArray(), 0, str.length()));
+        }
+
+        /**
+         * The list [lo, lo + 1, ..., lo + size - 1], without storing it.
+         */
+        public static List range(long lo, int size) {
+            return new List(new Buffer(lo, size));
+        }
+
+        public int size() {
+            return end - start;
+        }
+
+        public boolean isEmpty() {
+            return start == end;
+        }
+
+        public Atom get(int i) {
+            return buf.get(start + i);
+        }
+
+        // lets builtins like sum skip boxing every element
+        public boolean holdsLongs() {
+            return buf.holdsLongs();
+        }
+
+        public long longAt(int i) {
+            return buf.longAt(start + i);
+        }
+
+        public boolean holdsChars() {
+            return buf.chars != null;
+        }
+
+        // whether the elements are a range that isn't stored, see range
+        public boolean isRange() {
+            return buf.holdsLongs() && buf.longs == null;
+        }
+
+        /**
+         * Two lists are equal if their elements are, however either of them
+         * is stored, and the hash is the one java.util.List would have.
+         */
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            } else if (!(o instanceof List) || ((List) o).size() != size()) {
+                return false;
+            }
+            List rhs = (List) o;
+            int n = size();
+            if (holdsLongs() && rhs.holdsLongs()) {
+                for (int i = 0; i < n; i += 1) {
+                    if (longAt(i) != rhs.longAt(i)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            for (int i = 0; i < n; i += 1) {
+                if (!get(i).equals(rhs.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int hashCode() {
+            int h = hash;
+            if (h == 0) {
+                h = 1;
+                int n = size();
+                if (holdsLongs()) {
+                    for (int i = 0; i < n; i += 1) {
+                        h = 31 * h + Long.hashCode(longAt(i));
+                    }
+                } else if (buf.chars != null) {
+                    for (int i = 0; i < n; i += 1) {
+                        h = 31 * h + buf.chars[start + i];
+                    }
+                } else {
+                    for (int i = 0; i < n; i += 1) {
+                        h = 31 * h + buf.atoms[start + i].hashCode();
+                    }
+                }
+                hash = h;
+            }
+            return h;
+        }
+
+        public Atom first() throws Exception {
+            if (isEmpty()) {
+                throw new Exception("Can't take the head of an empty list");
+            }
+            return buf.get(start);
+        }
+
+        public List rest() throws Exception {
+            if (isEmpty()) {
+                throw new Exception("Can't take the tail of an empty list");
+            }
+            return new List(buf, start + 1, end);
+        }
+
+        public List concat(List rhs) {
+            if (rhs.isEmpty()) {
+                return this;
+            } else if (this.isEmpty()) {
+                return rhs;
+            }
 
-        public List(ArrayList<Expr> list) {
-            this.list = list;
+            int lSize = this.size();
+            int rSize = rhs.size();
+            int n = lSize + rSize;
+            int capacity = n * 2 + 8;
+            // leave the free space on the side that's more likely to keep
+            // growing, so that repeatedly prepending or appending doubles
+            int at = lSize <= rSize ? capacity - n : 0;
+
+            if (!buf.sameKind(rhs.buf)) {
+                Atom[] items = new Atom[capacity];
+                for (int i = 0; i < lSize; i += 1) {
+                    items[at + i] = get(i);
+                }
+                for (int i = 0; i < rSize; i += 1) {
+                    items[at + lSize + i] = rhs.get(i);
+                }
+                return new List(new Buffer(items, at, at + n));
+            }
+
+            if (buf.claimBack(end, rSize)) {
+                buf.copy(rhs.buf, rhs.start, end, rSize);
+                return new List(buf, start, end + rSize);
+            }
+            if (rhs.buf.claimFront(rhs.start, lSize)) {
+                rhs.buf.copy(buf, start, rhs.start - lSize, lSize);
+                return new List(rhs.buf, rhs.start - lSize, rhs.end);
+            }
+
+            Buffer grown = buf.like(capacity, at, at + n);
+            grown.copy(buf, start, at, lSize);
+            grown.copy(rhs.buf, rhs.start, at + lSize, rSize);
+            return new List(grown);
         }
-        
+
         private boolean isCharArray() {
-        	for(int i = 0; i < list.size(); i++) {
-        		Expr e = list.get(i);
-        		if (!(e instanceof Expr.AtomicExpr && ((Expr.AtomicExpr)e).val instanceof Atom.Char)) return false;
+            if (buf.chars != null || isEmpty()) return true;
+            if (buf.holdsLongs()) return false;
+        	for(int i = 0; i < size(); i++) {
+        		if (!(get(i) instanceof Atom.Char)) return false;
         	}
         	return true;
         }
-        private String formatAsString() {
-        	assert isCharArray();
-        	String result = "\"";
-        	for(int i = 0; i < list.size(); i++) {
-        		result += ((Atom.Char)((Expr.AtomicExpr)list.get(i)).val).val;
-        	}
-        	return result + '"';
+        // how much of a list print builds up before handing it on
+        private static final int CHUNK = 8192;
+
+        /**
+         * Appends this to sb, nested lists included, and if there's an out,
+         * moves what's in sb on to it every CHUNK characters or so. Either
+         * way each element is only copied once, so it's linear in the length
+         * of the result.
+         */
+        private void format(StringBuilder sb, Appendable out) throws IOException {
+            if (isCharArray()) {
+                sb.append('"');
+                if (buf.chars != null) {
+                    sb.append(buf.chars, start, size());
+                } else {
+                    for (int i = 0; i < size(); i++) {
+                        sb.append(((Atom.Char) get(i)).val);
+                    }
+                }
+                sb.append('"');
+                return;
+            }
+            sb.append('[');
+            boolean longs = buf.holdsLongs();
+            for (int i = 0; i < size(); i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                if (longs) {
+                    sb.append(longAt(i));
+                } else {
+                    Atom el = get(i);
+                    if (el instanceof List) {
+                        ((List) el).format(sb, out);
+                    } else {
+                        sb.append(el);
+                    }
+                }
+                if (out != null && sb.length() >= CHUNK) {
+                    out.append(sb);
+                    sb.setLength(0);
+                }
+            }
+            sb.append(']');
+        }
+
+        public void print(Appendable out) throws IOException {
+            if (out instanceof StringBuilder) {
+                format((StringBuilder) out, null);
+                return;
+            }
+            StringBuilder sb = new StringBuilder();
+            format(sb, out);
+            out.append(sb);
         }
 
         public String toString() {
-        	if (isCharArray()) return formatAsString();
-            return list.toString();
+            StringBuilder sb = new StringBuilder();
+            try {
+                format(sb, null);
+            } catch (IOException e) {
+                // only out can throw
+                throw new UncheckedIOException(e);
+            }
+            return sb.toString();
         }
     }
     
     public static class Str extends List {
-    	private static ArrayList<Expr> split(String val) {
-    		ArrayList<Expr> list = new ArrayList<Expr>();
-    		for(int i = 0; i < val.length(); i++) {
-    			list.add(new Expr.AtomicExpr(new Atom.Char(val.charAt(i))));
-    		}
-    		return list;
-    	}
-    	
     	public Str(String val) {
-    		super(split(val));
+    		super(val);
         }
     }
 
     public static class Ident extends Atom {
         String name;
 
+        // filled in by the Resolver, a slot of -1 means it's a global
+        int depth = 0;
+        int slot = -1;
+
         public Ident(String name) {
             this.name = name;
         }
@@ -112,9 +590,32 @@ abstract class Atom {
         Expr expr;
         ArrayList<String> argNames;
 
-        public Lambda(Expr expr, ArrayList<String> argNames) {
+        // the frame the lambda was created in
+        Frame env;
+
+        // whether the body creates lambdas, which would hold on to its frame
+        boolean captures;
+
+        // only used by the VM, a lambda is compiled the first time the VM calls it
+        Chunk chunk;
+
+        public Lambda(Expr expr, ArrayList<String> argNames, Frame env, boolean captures) {
             this.expr = expr;
             this.argNames = argNames;
+            this.env = env;
+            this.captures = captures;
+        }
+
+        public Lambda(Chunk chunk, Frame env) {
+            this(chunk.expr, chunk.argNames, env, chunk.protos.length > 0);
+            this.chunk = chunk;
+        }
+
+        public Chunk compiled() throws Exception {
+            if (chunk == null) {
+                chunk = Compiler.compileLambda(this);
+            }
+            return chunk;
         }
 
         public String toString() {
@@ -122,9 +623,45 @@ abstract class Atom {
         }
     }
 
+    /**
+     * A function implemented in Java. It's called just like a lambda, and gets
+     * a Caller for calling back into whichever evaluator is running.
+     */
+    public static class Builtin extends Atom {
+        interface Body {
+            Atom call(Caller caller, Atom[] args) throws Exception;
+        }
+
+        String name;
+        int arity;
+        Body body;
+
+        // whether the last argument may be a Builtins.Seq instead of a list
+        boolean streams;
+        // whether a call can be turned into a Builtins.Seq instead of running
+        boolean defers;
+
+        public Builtin(String name, int arity, Body body) {
+            this.name = name;
+            this.arity = arity;
+            this.body = body;
+        }
+
+        public Builtin(String name, int arity, Body body, boolean streams, boolean defers) {
+            this(name, arity, body);
+            this.streams = streams;
+            this.defers = defers;
+        }
+
+        public String toString() {
+            return String.format("Builtin {name: %s}", name);
+        }
+    }
+
     public static class Unit extends Atom {
+        public static final Unit UNIT = new Unit();
 
-        public Unit() {
+        private Unit() {
         }
 
         public String toString() {
@@ -132,17 +669,44 @@ abstract class Atom {
         }
     }
 
+    private static boolean isInteger(Atom a) {
+        return a instanceof Val || a instanceof Big;
+    }
+
+    private static BigInteger big(Atom a) {
+        return a instanceof Val ? BigInteger.valueOf(((Val) a).val) : ((Big) a).val;
+    }
+
+    // kept out of the arithmetic methods so that their fast paths stay small
+    // enough to inline
+    private static Atom bigArith(BinOp op, Atom lhs, Atom rhs) {
+        BigInteger l = big(lhs);
+        BigInteger r = big(rhs);
+        return Big.of(switch (op) {
+            case Add -> l.add(r);
+            case Sub -> l.subtract(r);
+            case Mul -> l.multiply(r);
+            case Div -> l.divide(r);
+            case Mod -> l.remainder(r);
+            default -> throw new IllegalArgumentException(op.toString());
+        });
+    }
+
+    private static int bigCompare(Atom lhs, Atom rhs) {
+        return big(lhs).compareTo(big(rhs));
+    }
+
     public Atom add(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Val(((Val) this).val + ((Val) rhs).val);
+            try {
+                return (Atom) Val.of(Math.addExact(((Val) this).val, ((Val) rhs).val));
+            } catch (ArithmeticException e) {
+                return bigArith(BinOp.Add, this, rhs);
+            }
+        } else if (isInteger(this) && isInteger(rhs)) {
+            return bigArith(BinOp.Add, this, rhs);
         } else if ((this instanceof List) && (rhs instanceof List)) {
-            List lArr = (List) this;
-            List rArr = (List) rhs;
-
-            List newList = new List(new ArrayList<Expr>());
-            newList.list.addAll(lArr.list);
-            newList.list.addAll(rArr.list);
-            return (Atom) newList;
+            return ((List) this).concat((List) rhs);
         } else {
             throw new Exception("Badd");
         }
@@ -150,7 +714,13 @@ abstract class Atom {
 
     public Atom sub(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Val(((Val) this).val - ((Val) rhs).val);
+            try {
+                return (Atom) Val.of(Math.subtractExact(((Val) this).val, ((Val) rhs).val));
+            } catch (ArithmeticException e) {
+                return bigArith(BinOp.Sub, this, rhs);
+            }
+        } else if (isInteger(this) && isInteger(rhs)) {
+            return bigArith(BinOp.Sub, this, rhs);
         } else {
             throw new Exception("Bad Sub");
         }
@@ -158,7 +728,13 @@ abstract class Atom {
 
     public Atom mul(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Val(((Val) this).val * ((Val) rhs).val);
+            try {
+                return (Atom) Val.of(Math.multiplyExact(((Val) this).val, ((Val) rhs).val));
+            } catch (ArithmeticException e) {
+                return bigArith(BinOp.Mul, this, rhs);
+            }
+        } else if (isInteger(this) && isInteger(rhs)) {
+            return bigArith(BinOp.Mul, this, rhs);
         } else {
             throw new Exception("Bad Mul");
         }
@@ -166,7 +742,15 @@ abstract class Atom {
 
     public Atom div(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Val(((Val) this).val / ((Val) rhs).val);
+            long l = ((Val) this).val;
+            long r = ((Val) rhs).val;
+            if (l == Long.MIN_VALUE && r == -1) {
+                // the only division that overflows
+                return Big.of(big(this).negate());
+            }
+            return (Atom) Val.of(l / r);
+        } else if (isInteger(this) && isInteger(rhs)) {
+            return bigArith(BinOp.Div, this, rhs);
         } else {
             throw new Exception("Bad Div");
         }
@@ -174,34 +758,58 @@ abstract class Atom {
 
     public Atom mod(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Val(((Val) this).val % ((Val) rhs).val);
+            return (Atom) Val.of(((Val) this).val % ((Val) rhs).val);
+        } else if (isInteger(this) && isInteger(rhs)) {
+            return bigArith(BinOp.Mod, this, rhs);
         } else {
             throw new Exception("Bad Mod");
         }
     }
 
     public Atom lt(Atom rhs) throws Exception {
+        return Bool.of(less(rhs));
+    }
+
+    public Atom gt(Atom rhs) throws Exception {
+        return Bool.of(greater(rhs));
+    }
+
+    public Atom eq(Atom rhs) throws Exception {
+        return Bool.of(equal(rhs));
+    }
+
+    // the comparisons as Java booleans, for conditions, which are only ever
+    // branched on
+
+    public boolean less(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Bool(((Val) this).val < ((Val) rhs).val);
+            return ((Val) this).val < ((Val) rhs).val;
+        } else if (isInteger(this) && isInteger(rhs)) {
+            return bigCompare(this, rhs) < 0;
         } else {
             throw new Exception("Bad Cmp");
         }
     }
 
-    public Atom gt(Atom rhs) throws Exception {
+    public boolean greater(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Bool(((Val) this).val > ((Val) rhs).val);
+            return ((Val) this).val > ((Val) rhs).val;
+        } else if (isInteger(this) && isInteger(rhs)) {
+            return bigCompare(this, rhs) > 0;
         } else {
             throw new Exception("Bad Cmp");
         }
     }
 
-    public Atom eq(Atom rhs) throws Exception {
+    public boolean equal(Atom rhs) throws Exception {
         if ((this instanceof Val) && (rhs instanceof Val)) {
-            return (Atom) new Bool(((Val) this).val == ((Val) rhs).val);
+            return ((Val) this).val == ((Val) rhs).val;
+        }
+        else if (isInteger(this) && isInteger(rhs)) {
+            return bigCompare(this, rhs) == 0;
         }
         else if (this instanceof Bool || rhs instanceof Bool) {
-            return (Atom) new Bool(this.isTruthy() == rhs.isTruthy());
+            return this.isTruthy() == rhs.isTruthy();
         }
         else {
             throw new Exception("Bad Cmp");
@@ -211,63 +819,54 @@ abstract class Atom {
     public Atom negate() throws Exception {
     	if (this instanceof Val) {
             Val v = (Val) this;
-            return (Atom) new Val(-v.val);
+            if (v.val == Long.MIN_VALUE) {
+                return Big.of(big(v).negate());
+            }
+            return (Atom) Val.of(-v.val);
+        }
+        else if (this instanceof Big) {
+            return Big.of(((Big) this).val.negate());
         }
     	else if (this instanceof Bool) {
             Bool b = (Bool) this;
-            return (Atom) new Bool(!b.val);
+            return (Atom) Bool.of(!b.val);
         }
     	else {
             throw new Exception("Bad Negate");
         }
     }
 
-    public Atom head(HashMap<String, Atom> variables) throws Exception {
+    public Atom head() throws Exception {
         if (this instanceof List) {
-            List ls = (List) this;
-            return (Atom) ls.list.get(0).eval(variables);
+            return ((List) this).first();
         } else {
             throw new Exception("Bad Head");
         }
     }
 
-    public Atom tail(HashMap<String, Atom> variables) throws Exception {
+    public Atom tail() throws Exception {
         if (this instanceof List) {
-            List ls = (List) this;
-            ArrayList<Expr> nls = new ArrayList<>(ls.list.subList(1, ls.list.size()));
-            return (Atom) new List(nls);
+            return ((List) this).rest();
         } else {
             throw new Exception("Bad Tail");
         }
     }
 
+    /**
+     * Writes what toString would return to out, which for a list is written
+     * a piece at a time rather than all at once.
+     */
+    public void print(Appendable out) throws IOException {
+        out.append(toString());
+    }
+
     public boolean isTruthy() throws Exception {
         if (this instanceof Bool) {
             Bool v = (Bool) this;
             return v.val;
         } else if (this instanceof List) {
             List ls = (List) this;
-            return !ls.list.isEmpty();
-        } else {
-            throw new Exception(String.format("Can't coerce %s to a boolean", this.toString()));
-        }
-    }
-
-    public Atom and(Atom rhs) throws Exception {
-        if (this instanceof Bool && rhs instanceof Bool) {
-            Bool lhs = (Bool) this;
-            Bool other = (Bool) rhs;
-            return new Bool(lhs.val && other.val);
-        } else {
-            throw new Exception(String.format("Can't coerce %s to a boolean", this.toString()));
-        }
-    }
-
-    public Atom or(Atom rhs) throws Exception {
-        if (this instanceof Bool && rhs instanceof Bool) {
-            Bool lhs = (Bool) this;
-            Bool other = (Bool) rhs;
-            return new Bool(lhs.val || other.val);
+            return !ls.isEmpty();
         } else {
             throw new Exception(String.format("Can't coerce %s to a boolean", this.toString()));
         }
@@ -287,26 +886,30 @@ abstract class Atom {
  *          </p>
  */
 abstract class Expr {
-    abstract Atom eval(HashMap<String, Atom> variables) throws Exception;
+    abstract Atom eval(Frame frame) throws Exception;
+
+    /**
+     * Evaluates the expression as a condition, which is true if its value is
+     * truthy. Comparisons and && and || override it to skip making a Bool.
+     */
+    boolean test(Frame frame) throws Exception {
+        return eval(frame).isTruthy();
+    }
 
     public static class AtomicExpr extends Expr {
         Atom val;
 
-        Atom eval(HashMap<String, Atom> variables) throws Exception {
+        Atom eval(Frame frame) throws Exception {
             if (val instanceof Atom.Ident) {
                 Atom.Ident v = (Atom.Ident) val;
-                var res = variables.get(v.name);
+                if (v.slot != -1) {
+                    return frame.up(v.depth).slots[v.slot];
+                }
+                var res = frame.globals.get(v.name);
                 if (res == null) {
                     throw new Exception(String.format("Tried to access nonexistent variable %s", v.name));
                 }
                 return res;
-            } else if (val instanceof Atom.List) {
-                Atom.List ls = (Atom.List) val;
-                ArrayList<Expr> nls = new ArrayList<>();
-                for (Expr expr : ls.list) {
-                    nls.add(new AtomicExpr(expr.eval(variables)));
-                }
-                return new Atom.List(nls);
             } else {
                 return val;
             }
@@ -325,11 +928,11 @@ abstract class Expr {
         PrefixOp op;
         Expr rhs;
 
-        Atom eval(HashMap<String, Atom> variables) throws Exception {
+        Atom eval(Frame frame) throws Exception {
             return switch (op) {
-                case Negate -> rhs.eval(variables).negate();
-                case Head -> rhs.eval(variables).head(variables);
-                case Tail -> rhs.eval(variables).tail(variables);
+                case Negate -> rhs.eval(frame).negate();
+                case Head -> rhs.eval(frame).head();
+                case Tail -> rhs.eval(frame).tail();
             };
         }
 
@@ -343,26 +946,169 @@ abstract class Expr {
         }
     }
 
+    /**
+     * An operator applied to two operands.
+     *
+     * <p>
+     * A node specializes itself on the operands it sees, like a Truffle node
+     * but without replacing itself in its parent. If the first operands it
+     * gets are both Vals it does the arithmetic on longs right here, behind a
+     * single guard. If a later operand isn't a Val it falls back to the
+     * generic methods on Atom for good, so a node that's used on lists only
+     * pays for the guard once. Overflow isn't a type change, so it takes the
+     * generic path for that one evaluation without giving up the
+     * specialization.
+     * </p>
+     *
+     * <p>
+     * Cached scripts share their nodes between sessions and threads. The
+     * state is one field, and the long path checks its operands whatever it
+     * says, so a race that sets a node back to LONGS after another thread
+     * made it generic only costs a failed guard, never a wrong result.
+     * </p>
+     */
     public static class BinaryExpr extends Expr {
         BinOp op;
         Expr lhs;
         Expr rhs;
 
-        Atom eval(HashMap<String, Atom> variables) throws Exception {
+        private static final byte UNSEEN = 0;
+        private static final byte LONGS = 1;
+        private static final byte GENERIC = 2;
+
+        private byte seen = UNSEEN;
+
+        // whether both operands are Vals and this node still takes the long
+        // path, updating what it's seen
+        private boolean longs(Atom l, Atom r) {
+            byte state = seen;
+            if (state == GENERIC) {
+                return false;
+            }
+            boolean vals = l instanceof Atom.Val && r instanceof Atom.Val;
+            if (state == UNSEEN || !vals) {
+                seen = vals ? LONGS : GENERIC;
+            }
+            return vals;
+        }
+
+        Atom eval(Frame frame) throws Exception {
+            if (frame.globals.profile != null) {
+                frame.globals.profile.op(op);
+            }
+            switch (op) {
+                case Add -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    if (longs(l, r)) {
+                        long a = ((Atom.Val) l).val, b = ((Atom.Val) r).val, res = a + b;
+                        // the check Math.addExact does
+                        if (((a ^ res) & (b ^ res)) >= 0) {
+                            return Atom.Val.of(res);
+                        }
+                    }
+                    // adding lists is the one operator that makes a longer one
+                    Atom res = l.add(r);
+                    if (res instanceof Atom.List && frame.globals.budget != null) {
+                        frame.globals.budget.checkList(res);
+                    }
+                    return res;
+                }
+                case Sub -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    if (longs(l, r)) {
+                        long a = ((Atom.Val) l).val, b = ((Atom.Val) r).val, res = a - b;
+                        if (((a ^ b) & (a ^ res)) >= 0) {
+                            return Atom.Val.of(res);
+                        }
+                    }
+                    return l.sub(r);
+                }
+                case Mul -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    if (longs(l, r)) {
+                        long a = ((Atom.Val) l).val, b = ((Atom.Val) r).val, res = a * b;
+                        if (Math.multiplyHigh(a, b) == res >> 63) {
+                            return Atom.Val.of(res);
+                        }
+                    }
+                    return l.mul(r);
+                }
+                case Div -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    if (longs(l, r)) {
+                        long a = ((Atom.Val) l).val, b = ((Atom.Val) r).val;
+                        if (b != 0 && !(a == Long.MIN_VALUE && b == -1)) {
+                            return Atom.Val.of(a / b);
+                        }
+                    }
+                    return l.div(r);
+                }
+                case Mod -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    if (longs(l, r)) {
+                        long b = ((Atom.Val) r).val;
+                        if (b != 0) {
+                            return Atom.Val.of(((Atom.Val) l).val % b);
+                        }
+                    }
+                    return l.mod(r);
+                }
+                default -> {
+                    return Atom.Bool.of(decide(frame));
+                }
+            }
+        }
+
+        boolean test(Frame frame) throws Exception {
+            // arithmetic is counted by eval
+            if (frame.globals.profile != null && !arithmetic()) {
+                frame.globals.profile.op(op);
+            }
+            return decide(frame);
+        }
+
+        private boolean arithmetic() {
             return switch (op) {
-                case Add -> lhs.eval(variables).add(rhs.eval(variables));
-                case Sub -> lhs.eval(variables).sub(rhs.eval(variables));
-                case Mul -> lhs.eval(variables).mul(rhs.eval(variables));
-                case Div -> lhs.eval(variables).div(rhs.eval(variables));
-                case Mod -> lhs.eval(variables).mod(rhs.eval(variables));
-                case LT -> lhs.eval(variables).lt(rhs.eval(variables));
-                case GT -> lhs.eval(variables).gt(rhs.eval(variables));
-                case EQ -> lhs.eval(variables).eq(rhs.eval(variables));
-                case And -> lhs.eval(variables).and(rhs.eval(variables));
-                case Or -> lhs.eval(variables).or(rhs.eval(variables));
+                case Add, Sub, Mul, Div, Mod -> true;
+                default -> false;
             };
         }
 
+        // && and || only evaluate their right hand side if they need to
+        private boolean decide(Frame frame) throws Exception {
+            switch (op) {
+                case LT -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    return longs(l, r) ? ((Atom.Val) l).val < ((Atom.Val) r).val : l.less(r);
+                }
+                case GT -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    return longs(l, r) ? ((Atom.Val) l).val > ((Atom.Val) r).val : l.greater(r);
+                }
+                case EQ -> {
+                    Atom l = lhs.eval(frame);
+                    Atom r = rhs.eval(frame);
+                    return longs(l, r) ? ((Atom.Val) l).val == ((Atom.Val) r).val : l.equal(r);
+                }
+                case And -> {
+                    return lhs.test(frame) && rhs.test(frame);
+                }
+                case Or -> {
+                    return lhs.test(frame) || rhs.test(frame);
+                }
+                default -> {
+                    return eval(frame).isTruthy();
+                }
+            }
+        }
+
         public BinaryExpr(BinOp op, Expr lhs, Expr rhs) {
             this.op = op;
             this.lhs = lhs;
@@ -385,12 +1131,11 @@ abstract class Expr {
         Expr lhs;
         Expr rhs;
 
-        Atom eval(HashMap<String, Atom> variables) throws Exception {
-            Atom condVal = cond.eval(variables);
-            if (condVal.isTruthy()) {
-                return lhs.eval(variables);
+        Atom eval(Frame frame) throws Exception {
+            if (cond.test(frame)) {
+                return lhs.eval(frame);
             } else {
-                return rhs.eval(variables);
+                return rhs.eval(frame);
             }
         }
 
@@ -409,28 +1154,253 @@ abstract class Expr {
         String name;
         ArrayList<Expr> variables;
 
-        Atom eval(HashMap<String, Atom> variables) throws Exception {
-            HashMap<String, Atom> evaledVariables = new HashMap<>();
-            evaledVariables.putAll(variables);
+        // filled in by the Resolver, a slot of -1 means it's a global
+        int depth = 0;
+        int slot = -1;
+
+        // filled in by the Resolver, whether the call is the last thing its
+        // lambda does
+        boolean tail = false;
+
+        // set by the Resolver when the last argument is a call like fmap(f, ls)
+        // that can be passed to this one as a Builtins.Seq
+        boolean deferLast = false;
+
+        // returned by a call in tail position instead of its value
+        static final Atom TAIL_CALL = new Atom() {
+        };
+
+        /**
+         * The global this call found last time, and the version of the
+         * globals it was found in. A call to a global almost always finds the
+         * same lambda, so while the session hasn't defined anything since,
+         * the lookup and the arity check are skipped. The callee is only
+         * weakly held, since cached scripts are shared by every session and
+         * shouldn't keep a finished one alive.
+         */
+        private static final class Cached extends WeakReference<Atom> {
+            final long version;
+
+            Cached(Atom callee, long version) {
+                super(callee);
+                this.version = version;
+            }
+        }
+
+        // a Cached is immutable, and only replaced by one from newer globals,
+        // see callee. Two threads replacing it at once can only drop one of
+        // their entries, which that thread's next call puts back.
+        private Cached cached;
+
+        private Atom callee(Frame frame) throws Exception {
+            if (slot != -1) {
+                Atom callee = frame.up(depth).slots[slot];
+                if (callee == null) {
+                    throw new Exception(String.format("Undefined lambda '%s'", this.name));
+                }
+                checkCall(name, callee, this.variables.size());
+                return callee;
+            }
 
-            Atom.Lambda lambda = ((Atom.Lambda) evaledVariables.get(this.name));
-            if (lambda == null) {
+            Globals globals = frame.globals;
+            Cached c = cached;
+            if (c != null && c.version == globals.version) {
+                Atom callee = c.get();
+                if (callee != null) {
+                    return callee;
+                }
+            }
+            Atom callee = globals.get(this.name);
+            if (callee == null) {
                 throw new Exception(String.format("Undefined lambda '%s'", this.name));
             }
+            checkCall(name, callee, this.variables.size());
+            // versions only grow, so sessions whose globals differ don't keep
+            // replacing each other's entry: the one that defined something
+            // last keeps it, and the others look the callee up every time,
+            // like they would without a cache
+            if (c == null || globals.version > c.version || c.get() == null) {
+                cached = new Cached(callee, globals.version);
+            }
+            return callee;
+        }
+
+        Atom eval(Frame frame) throws Exception {
+            return eval(frame, false);
+        }
+
+        /**
+         * deferred is set when this is the last argument of a call to a builtin
+         * that streams, in which case a call to fmap or filter returns a Seq
+         * instead of running.
+         */
+        Atom eval(Frame frame, boolean deferred) throws Exception {
+            Atom callee = callee(frame);
+
+            if (tail) {
+                // the arguments array is only handed over once the loop in
+                // invoke picks up the call, so it can be reused by every call
+                // this frame makes
+                Atom[] args = frame.tailArgs;
+                if (args == null || args.length != this.variables.size()) {
+                    args = new Atom[this.variables.size()];
+                }
+                for (int i = 0; i < args.length; i += 1) {
+                    args[i] = arg(frame, callee, i);
+                }
+                frame.tailArgs = args;
+                frame.tailCallee = callee;
+                frame.tailName = name;
+                return TAIL_CALL;
+            }
+
+            // only the arguments are copied, so a call costs the same no matter
+            // how many globals there are
+            Atom[] slots = new Atom[this.variables.size()];
+            for (int i = 0; i < slots.length; i += 1) {
+                slots[i] = arg(frame, callee, i);
+            }
+
+            if (deferred) {
+                Atom seq = Builtins.defer(callee, slots);
+                if (seq != null) {
+                    // counted like the call it stands for
+                    checkInterrupted();
+                    if (frame.globals.budget != null) {
+                        frame.globals.budget.step();
+                    }
+                    return seq;
+                }
+            }
+            return invoke(frame.globals, name, callee, slots);
+        }
+
+        private Atom arg(Frame frame, Atom callee, int i) throws Exception {
+            Expr e = this.variables.get(i);
+            if (deferLast && i == this.variables.size() - 1 && Builtins.streams(callee)) {
+                return ((LambdaCall) e).eval(frame, true);
+            }
+            return e.eval(frame);
+        }
+
+        /**
+         * Stops the script if its thread was interrupted, which is how a
+         * ScriptExecutor cancels it. Every call checks, and so do the
+         * builtins that loop over a list without calling, so this is always
+         * reached soon.
+         */
+        static void checkInterrupted() throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Script was interrupted");
+            }
+        }
+
+        static void checkCall(String name, Atom callee, int argc) throws Exception {
+            int arity;
+            if (callee instanceof Atom.Lambda) {
+                arity = ((Atom.Lambda) callee).argNames.size();
+            } else if (callee instanceof Atom.Builtin) {
+                arity = ((Atom.Builtin) callee).arity;
+            } else {
+                throw new Exception(String.format("Can't call %s, it isn't a lambda", name));
+            }
+
+            if (argc != arity) {
+                throw new Exception(
+                        String.format("Expected %d arguments to call of lambda %s, got %d", arity, name, argc));
+            }
+        }
+
+        /**
+         * Runs a call, and then every call its lambda makes in tail position, in
+         * a loop. A lambda calling itself in tail position reuses its frame
+         * unless a lambda it created might still refer to it.
+         *
+         * The session's Budget's depth only goes up once however many tail
+         * calls there are, and isn't brought back down if the script fails,
+         * since it's reset before the next one. The same goes for the
+         * session's Profile, which is unwound after a failed script.
+         */
+        private static Atom invoke(Globals globals, String name, Atom callee, Atom[] args) throws Exception {
+            Budget budget = globals.budget;
+            Profile profile = globals.profile;
+            if (profile != null) {
+                profile.enter(name);
+            }
+            Atom.Lambda current = null;
+            Frame frame = null;
+            for (;;) {
+                checkInterrupted();
+                if (budget != null) {
+                    budget.step();
+                }
+                if (callee instanceof Atom.Builtin) {
+                    Atom res = ((Atom.Builtin) callee).body.call(new Apply(globals), args);
+                    if (budget != null && current != null) {
+                        budget.exit();
+                    }
+                    if (profile != null) {
+                        profile.exit();
+                    }
+                    return res;
+                }
+                Atom.Lambda lambda = (Atom.Lambda) callee;
+                if (budget != null && current == null) {
+                    budget.enter();
+                }
+
+                if (lambda == current && !lambda.captures) {
+                    System.arraycopy(args, 0, frame.slots, 0, args.length);
+                } else {
+                    // args is either new or the tail call arguments of a frame
+                    // that's done, so the new frame can keep it
+                    frame = new Frame(args, lambda.env, lambda.env.globals);
+                    current = lambda;
+                }
+
+                Atom res = lambda.expr.eval(frame);
+                if (res != TAIL_CALL) {
+                    if (budget != null) {
+                        budget.exit();
+                    }
+                    if (profile != null) {
+                        profile.exit();
+                    }
+                    return res;
+                }
+                callee = frame.tailCallee;
+                args = frame.tailArgs;
+                frame.tailCallee = null;
+                if (profile != null) {
+                    profile.replace(frame.tailName);
+                }
+            }
+        }
 
-            ArrayList<String> argNames = lambda.argNames;
+        /**
+         * Calls a lambda or builtin with arguments that were already evaluated,
+         * this is the tree walker's Caller.
+         */
+        static class Apply implements Caller {
+            private final Globals globals;
 
-            if (this.variables.size() != lambda.argNames.size()) {
-                throw new Exception(String.format("Expected %d arguments to call of lambda %s, got %d",
-                        lambda.argNames.size(), name, this.variables.size()));
+            Apply(Globals globals) {
+                this.globals = globals;
             }
 
-            for (int i = 0; i < argNames.size(); i += 1) {
-                evaledVariables.put(argNames.get(i), this.variables.get(i).eval(variables));
+            public Atom call(String name, Atom callee, Atom[] args) throws Exception {
+                checkCall(name, callee, args.length);
+                return invoke(globals, name, callee, args);
             }
 
-            Expr expr = lambda.expr;
-            return expr.eval(evaledVariables);
+            public Globals globals() {
+                return globals;
+            }
+
+            // the tree walker keeps no state of its own between calls
+            public Caller fork() {
+                return this;
+            }
         }
 
         public LambdaCall(String name) {
@@ -451,9 +1421,10 @@ abstract class Expr {
         String lhs;
         Expr rhs;
 
-        Atom eval(HashMap<String, Atom> variables) throws Exception {
-            variables.put(lhs, rhs.eval(variables));
-            return new Atom.Unit();
+        // let always binds a global, even inside of a lambda
+        Atom eval(Frame frame) throws Exception {
+            frame.globals.put(lhs, rhs.eval(frame));
+            return Atom.Unit.UNIT;
         }
 
         public AssignExpr(String lhs, Expr rhs) {
@@ -466,18 +1437,68 @@ abstract class Expr {
         }
     }
 
+    /**
+     * A lambda literal. Evaluating it creates an Atom.Lambda which closes over
+     * the current frame.
+     */
+    public static class LambdaExpr extends Expr {
+        Expr expr;
+        ArrayList<String> argNames;
+
+        // filled in by the Resolver
+        boolean captures = true;
+
+        Atom eval(Frame frame) throws Exception {
+            return new Atom.Lambda(expr, argNames, frame, captures);
+        }
+
+        public LambdaExpr(Expr expr, ArrayList<String> argNames) {
+            this.expr = expr;
+            this.argNames = argNames;
+        }
+
+        public String toString() {
+            return String.format("Lambda {expr: %s, argNames: %s}", expr.toString(), argNames.toString());
+        }
+    }
+
+    /**
+     * A list literal with elements that need evaluating. Evaluating it creates
+     * a new Atom.List from the values of its elements. Literals of only
+     * constants are already Atom.Lists when they're parsed.
+     */
+    public static class ListExpr extends Expr {
+        ArrayList<Expr> elements;
+
+        Atom eval(Frame frame) throws Exception {
+            Atom[] items = new Atom[elements.size()];
+            for (int i = 0; i < items.length; i += 1) {
+                items[i] = elements.get(i).eval(frame);
+            }
+            return new Atom.List(items);
+        }
+
+        public ListExpr(ArrayList<Expr> elements) {
+            this.elements = elements;
+        }
+
+        public String toString() {
+            return elements.toString();
+        }
+    }
+
     public static void testExpr() throws Exception {
         // all the eval methods are mutually recursive but since it's essentially a tree
         // instead of a potentially cyclic graph it *is* possible to test them all
         // individually
 
-        HashMap<String, Atom> emptyScope = new HashMap<>();
+        Frame emptyScope = new Frame(new Atom[0], null, new Globals());
 
         AtomicExpr e1 = new AtomicExpr(new Atom.Val(1));
         assert ((Atom.Val) e1.eval(emptyScope)).val == 1;
 
-        HashMap<String, Atom> piScope = new HashMap<>();
-        piScope.put("pi", new Atom.Val(3));
+        Frame piScope = new Frame(new Atom[0], null, new Globals());
+        piScope.globals.put("pi", new Atom.Val(3));
         AtomicExpr e2 = new AtomicExpr(new Atom.Ident("pi"));
         assert ((Atom.Val) e2.eval(piScope)).val == 3;
 
@@ -487,35 +1508,79 @@ abstract class Expr {
         BinaryExpr e4 = new BinaryExpr(BinOp.Add, new Atom.Val(10), new Atom.Val(20));
         assert ((Atom.Val) e4.eval(emptyScope)).val == 30;
 
-        IfExpr e5 = new IfExpr(new AtomicExpr(new Atom.Bool(false)), new AtomicExpr(new Atom.Val(10)),
+        IfExpr e5 = new IfExpr(new AtomicExpr(Atom.Bool.FALSE), new AtomicExpr(new Atom.Val(10)),
                 new AtomicExpr(new Atom.Val(20)));
         assert ((Atom.Val) e5.eval(emptyScope)).val == 20;
 
-        IfExpr e6 = new IfExpr(new AtomicExpr(new Atom.Bool(true)), new AtomicExpr(new Atom.Val(10)),
+        IfExpr e6 = new IfExpr(new AtomicExpr(Atom.Bool.TRUE), new AtomicExpr(new Atom.Val(10)),
                 new AtomicExpr(new Atom.Val(20)));
         assert ((Atom.Val) e6.eval(emptyScope)).val == 10;
 
-        HashMap<String, Atom> lambdaScope = new HashMap<>();
+        Frame lambdaScope = new Frame(new Atom[0], null, new Globals());
 
-        AtomicExpr fib = (AtomicExpr) Parser.parseExpr("fn (n) => if (n < 2) then (1) else (fib(n - 1) + fib(n - 2))");
-        AtomicExpr add = (AtomicExpr) Parser.parseExpr("fn (start, end) => start + end");
+        LambdaExpr fib = (LambdaExpr) Resolver
+                .resolve(Parser.parseExpr("fn (n) => if (n < 2) then (1) else (fib(n - 1) + fib(n - 2))"));
+        LambdaExpr add = (LambdaExpr) Resolver.resolve(Parser.parseExpr("fn (start, end) => start + end"));
 
-        lambdaScope.put("fib", fib.val);
-        lambdaScope.put("add", add.val);
+        lambdaScope.globals.put("fib", fib.eval(lambdaScope));
+        lambdaScope.globals.put("add", add.eval(lambdaScope));
 
-        LambdaCall e7 = (LambdaCall) Parser.parseExpr("fib(10)");
-        LambdaCall e8 = (LambdaCall) Parser.parseExpr("add(5, 10)");
+        LambdaCall e7 = (LambdaCall) Resolver.resolve(Parser.parseExpr("fib(10)"));
+        LambdaCall e8 = (LambdaCall) Resolver.resolve(Parser.parseExpr("add(5, 10)"));
         assert ((Atom.Val) e7.eval(lambdaScope)).val == 89;
         assert ((Atom.Val) e8.eval(lambdaScope)).val == 15;
 
-        HashMap<String, Atom> newScope = new HashMap<>();
+        Frame newScope = new Frame(new Atom[0], null, new Globals());
 
         AssignExpr e9 = (AssignExpr) Parser.parseExpr("let x = 15");
         e9.eval(newScope);
-        assert ((Atom.Val) newScope.get("x")).val == 15;
+        assert ((Atom.Val) newScope.globals.get("x")).val == 15;
         AssignExpr e10 = (AssignExpr) Parser.parseExpr("let x = x * x");
         e10.eval(newScope);
-        assert ((Atom.Val) newScope.get("x")).val == 15 * 15;
+        assert ((Atom.Val) newScope.globals.get("x")).val == 15 * 15;
+
+        // lambdas close over the frame they're created in
+        Expr adder = Resolver.resolve(Parser.parseExpr("let adder = fn (n) => fn (x) => x + n"));
+        adder.eval(newScope);
+        LambdaCall e11 = (LambdaCall) Resolver.resolve(Parser.parseExpr("apply(adder(10), 5)"));
+        Resolver.resolve(Parser.parseExpr("let apply = fn (f, x) => f(x)")).eval(newScope);
+        assert ((Atom.Val) e11.eval(newScope)).val == 15;
+
+        // a node that's only seen longs still handles anything else, and
+        // overflow, once it's gone generic
+        Frame addScope = new Frame(new Atom[0], null, new Globals());
+        Resolver.resolve(Parser.parseExpr("let plus = fn (a, b) => a + b")).eval(addScope);
+        LambdaCall small = (LambdaCall) Resolver.resolve(Parser.parseExpr("plus(1, 2)"));
+        assert small.eval(addScope).toString().equals("3");
+        assert Resolver.resolve(Parser.parseExpr("plus(9223372036854775807, 1)")).eval(addScope).toString()
+                .equals("9223372036854775808");
+        assert Resolver.resolve(Parser.parseExpr("plus([1], [2])")).eval(addScope).toString().equals("[1, 2]");
+        assert small.eval(addScope).toString().equals("3");
+
+        // a call finds a global again once it's been redefined
+        Resolver.resolve(Parser.parseExpr("let plus = fn (a, b) => a - b")).eval(addScope);
+        assert small.eval(addScope).toString().equals("-1");
+        // and checks the new one's arity
+        Resolver.resolve(Parser.parseExpr("let plus = fn (a) => a")).eval(addScope);
+        boolean checked = false;
+        try {
+            small.eval(addScope);
+        } catch (Exception e) {
+            checked = e.getMessage().startsWith("Expected 1 arguments");
+        }
+        assert checked;
+
+        // a node shared by sessions with different globals finds each one's
+        // global, and stops replacing its entry after the first call of each
+        Frame subScope = new Frame(new Atom[0], null, new Globals());
+        Resolver.resolve(Parser.parseExpr("let plus = fn (a, b) => a * b")).eval(addScope);
+        Resolver.resolve(Parser.parseExpr("let plus = fn (a, b) => a - b")).eval(subScope);
+        assert small.eval(addScope).toString().equals("2") && small.eval(subScope).toString().equals("-1");
+        LambdaCall.Cached entry = small.cached;
+        for (int i = 0; i < 10; i += 1) {
+            assert small.eval(addScope).toString().equals("2") && small.eval(subScope).toString().equals("-1");
+        }
+        assert small.cached == entry;
     }
 }
 
@@ -558,38 +1623,98 @@ enum TokenTy {
 
     For, In, DotDot,
 
+    Newline,
+
     EOF,
 }
 
 /**
- * @author Mikail Khan <mikail@mikail-khan.com>
  * @version 0.1.0
- * 
- *          A token
+ *
+ *          The tokens of a source, in order.
  *
  *          <p>
  *          A token represents a basic building block of the flat structure of
- *          the language. They're easier to work with than characters.
+ *          the language. They're easier to work with than characters. Rather
+ *          than an object each, they're kept as parallel arrays of types and
+ *          positions in the source, so most tokens cost no allocation at all.
+ *          Only identifiers, characters and strings have a String, and every
+ *          occurrence of the same identifier in a source shares one.
+ *          Anything past the last token is EOF.
  *          </p>
  */
-class Token {
-    TokenTy ty;
-    String lexeme;
-
-    public Token(TokenTy ty, String lexeme) {
-        this.ty = ty;
-        this.lexeme = lexeme;
-    }
-
-    public static Token EOF() {
-        return new Token(TokenTy.EOF, null);
-    }
-
-    public String toString() {
-        return switch (ty) {
-            case Ident -> String.format("Ident '%s'", lexeme);
-            case Number -> String.format("Number %s", lexeme);
-            default -> String.format("%s", ty.toString());
+class Tokens {
+    private static final TokenTy[] TYPES = TokenTy.values();
+
+    final String source;
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    // the names of identifiers and the unescaped text of characters and
+    // strings, null for every other token
+    private String[] values;
+    private int size = 0;
+
+    Tokens(String source) {
+        this.source = source;
+        // code with spaces between its tokens has one for every two or three
+        // characters, so the arrays rarely have to grow
+        int capacity = Math.max(16, source.length() / 2);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+        values = new String[capacity];
+    }
+
+    void add(TokenTy ty, int start, int end, String value) {
+        if (size == types.length) {
+            int len = size * 2;
+            types = Arrays.copyOf(types, len);
+            starts = Arrays.copyOf(starts, len);
+            ends = Arrays.copyOf(ends, len);
+            values = Arrays.copyOf(values, len);
+        }
+        types[size] = (byte) ty.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        values[size] = value;
+        size += 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenTy ty(int i) {
+        return i < size ? TYPES[types[i]] : TokenTy.EOF;
+    }
+
+    /**
+     * The text of the token, unescaped for characters and strings. Only
+     * identifiers, characters and strings have one that's already made.
+     */
+    public String lexeme(int i) {
+        if (i >= size) {
+            return null;
+        }
+        return values[i] != null ? values[i] : source.substring(starts[i], ends[i]);
+    }
+
+    // anything with fewer than 19 digits fits in a long
+    Atom number(int i) {
+        int start = starts[i];
+        int end = ends[i];
+        if (end - start < 19) {
+            return Atom.Val.of(Long.parseLong(source, start, end, 10));
+        }
+        return Atom.Big.of(new BigInteger(source.substring(start, end)));
+    }
+
+    public String toString(int i) {
+        return switch (ty(i)) {
+            case Ident -> String.format("Ident '%s'", lexeme(i));
+            case Number -> String.format("Number %s", lexeme(i));
+            default -> String.format("%s", ty(i).toString());
         };
     }
 }
@@ -601,16 +1726,27 @@ class Token {
  *          The Tokenizer takes a String and turns it into a flat list of
  *          Tokens.
  *
+ *          <p>
+ *          It's a single pass over the source. Keywords are recognized without
+ *          making a String, and each distinct identifier is only copied out of
+ *          the source once.
+ *          </p>
+ *
  */
 class Tokenizer {
     private String input;
     private int position;
-    private ArrayList<Token> output;
+    private Tokens output;
+
+    // the identifiers seen so far, an open addressing table of Strings
+    // looked up by the region of the source they came from
+    private String[] names = new String[16];
+    private int nameCount = 0;
 
     private Tokenizer(String input) {
         this.input = input;
         this.position = 0;
-        this.output = new ArrayList<Token>();
+        this.output = new Tokens(input);
     }
 
     private boolean isFinished() {
@@ -628,6 +1764,9 @@ class Tokenizer {
     }
 
     private boolean expect(char expected) {
+        if (isFinished()) {
+            return false;
+        }
         char c = input.charAt(position);
         if (c == expected) {
             position += 1;
@@ -637,16 +1776,13 @@ class Tokenizer {
         }
     }
 
-    private void addToken(Token t) {
-        this.output.add(t);
-    }
-
-    private void addToken(TokenTy ty, char lexeme) {
-        addToken(new Token(ty, String.valueOf(lexeme)));
+    // a token that's all punctuation, ending at the current position
+    private void addToken(TokenTy ty, int start) {
+        output.add(ty, start, position, null);
     }
 
-    private void addToken(TokenTy ty, String lexeme) {
-        addToken(new Token(ty, lexeme));
+    private boolean is(int start, String keyword) {
+        return position - start == keyword.length() && input.startsWith(keyword, start);
     }
 
     private void scanIdent() {
@@ -655,20 +1791,64 @@ class Tokenizer {
             eat();
         }
 
-        String lexeme = input.substring(start, position);
+        TokenTy ty;
+        if (is(start, "if")) {
+            ty = TokenTy.If;
+        } else if (is(start, "then")) {
+            ty = TokenTy.Then;
+        } else if (is(start, "else")) {
+            ty = TokenTy.Else;
+        } else if (is(start, "let")) {
+            ty = TokenTy.Let;
+        } else if (is(start, "fn")) {
+            ty = TokenTy.Fn;
+        } else if (is(start, "for")) {
+            ty = TokenTy.For;
+        } else if (is(start, "in")) {
+            ty = TokenTy.In;
+        } else if (is(start, "true")) {
+            ty = TokenTy.True;
+        } else if (is(start, "false")) {
+            ty = TokenTy.False;
+        } else {
+            output.add(TokenTy.Ident, start, position, name(start, position));
+            return;
+        }
+        addToken(ty, start);
+    }
 
-        switch (lexeme) {
-            case "if" -> addToken(new Token(TokenTy.If, lexeme));
-            case "then" -> addToken(new Token(TokenTy.Then, lexeme));
-            case "else" -> addToken(new Token(TokenTy.Else, lexeme));
-            case "let" -> addToken(new Token(TokenTy.Let, lexeme));
-            case "fn" -> addToken(new Token(TokenTy.Fn, lexeme));
-            case "for" -> addToken(new Token(TokenTy.For, lexeme));
-            case "in" -> addToken(new Token(TokenTy.In, lexeme));
-            case "true" -> addToken(new Token(TokenTy.True, lexeme));
-            case "false" -> addToken(new Token(TokenTy.False, lexeme));
-            default -> addToken(new Token(TokenTy.Ident, lexeme));
+    // the String for the identifier at [start, end), the same one every time
+    private String name(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i += 1) {
+            hash = 31 * hash + input.charAt(i);
         }
+        int mask = names.length - 1;
+        int i = hash & mask;
+        for (String name = names[i]; name != null; name = names[i]) {
+            if (name.length() == end - start && input.startsWith(name, start)) {
+                return name;
+            }
+            i = (i + 1) & mask;
+        }
+        String name = input.substring(start, end);
+        names[i] = name;
+        nameCount += 1;
+        if (nameCount * 2 > names.length) {
+            String[] old = names;
+            names = new String[old.length * 2];
+            for (String n : old) {
+                if (n != null) {
+                    // the same hash as above, since it's String.hashCode
+                    int j = n.hashCode() & (names.length - 1);
+                    while (names[j] != null) {
+                        j = (j + 1) & (names.length - 1);
+                    }
+                    names[j] = n;
+                }
+            }
+        }
+        return name;
     }
 
     private void scanNumber() {
@@ -677,8 +1857,7 @@ class Tokenizer {
             eat();
         }
 
-        String lexeme = input.substring(start, position);
-        addToken(new Token(TokenTy.Number, lexeme));
+        addToken(TokenTy.Number, start);
     }
     
     private static boolean isHex(char c) {
@@ -697,24 +1876,26 @@ class Tokenizer {
     	// 			* Unicode: 					https://en.wikipedia.org/wiki/List_of_Unicode_characters	https://www.rapidtables.com/code/text/unicode-characters.html
     	// 			* Control characters: 		https://en.wikipedia.org/wiki/Control_character
     	// 			* Whitespace characters: 	https://en.wikipedia.org/wiki/Whitespace_character
-    	String result = "";
+    	if (sequence.indexOf('\\') == -1) {
+    		return sequence;
+    	}
+    	StringBuilder result = new StringBuilder(sequence.length());
     	for(int p = 0; p < sequence.length(); p++) {
     		char c = sequence.charAt(p);
     		if (c == '\\') {
     			p++;
-	    		String remaining = sequence.substring(p);
-	    		if (remaining.length() >= 5 && remaining.charAt(0) == 'u' && isHex(remaining.substring(1, 5))) {
-	    			char unicodeChar = (char)Integer.parseInt(remaining.substring(1, 5), 16);
-	    			result += unicodeChar;
+	    		if (sequence.length() - p >= 5 && sequence.charAt(p) == 'u' && isHex(sequence.substring(p + 1, p + 5))) {
+	    			char unicodeChar = (char)Integer.parseInt(sequence, p + 1, p + 5, 16);
+	    			result.append(unicodeChar);
 	    			p += 4; // p will increment before next iteration
 	    		}
 	    		else {
-	    			result += remaining.charAt(0);
+	    			result.append(sequence.charAt(p));
 	    		}
     		}
-    		else result += c;
+    		else result.append(c);
     	}
-    	return result;
+    	return result.toString();
     }
     
     private void scanCharacter() throws Exception {
@@ -733,9 +1914,8 @@ class Tokenizer {
     	
     	String characters = unescaper(lexeme);
     	if (characters.length() > 1) throw new Exception("Found invalid character, did you mean \"" + characters + "\"?");
-    	char character = characters.charAt(0);
 
-    	addToken(new Token(TokenTy.Character, "" + character));
+    	output.add(TokenTy.Character, start - 1, position, characters);
     }
     
     private void scanString() throws Exception {
@@ -753,55 +1933,65 @@ class Tokenizer {
     	
     	String string = unescaper(lexeme);
 
-    	addToken(new Token(TokenTy.String, string));
+    	output.add(TokenTy.String, start - 1, position, string);
     }
 
     private void addNextToken() throws Exception {
+        // a loop rather than a token of its own, so any number of spaces in a
+        // row doesn't use up the stack. A \r is only ever part of a \r\n.
+        while (!isFinished() && (peek() == ' ' || peek() == '\r')) {
+            position += 1;
+        }
+        if (isFinished()) {
+            return;
+        }
+        int start = position;
         char c = eat();
         switch (c) {
-            case ' ' -> addNextToken();
-            case '(' -> addToken(TokenTy.LParen, c);
-            case ')' -> addToken(TokenTy.RParen, c);
-            case '[' -> addToken(TokenTy.LBracket, c);
-            case ']' -> addToken(TokenTy.RBracket, c);
-            case '+' -> addToken(TokenTy.Add, c);
-            case '-' -> addToken(TokenTy.Sub, c);
-            case '*' -> addToken(TokenTy.Mul, c);
-            case '%' -> addToken(TokenTy.Mod, c);
-            case '/' -> addToken(TokenTy.Div, c);
-            case '<' -> addToken(TokenTy.LT, c);
-            case '>' -> addToken(TokenTy.GT, c);
-            case ',' -> addToken(TokenTy.Comma, c);
-            case '^' -> addToken(TokenTy.Caret, c);
-            case '$' -> addToken(TokenTy.Dollar, c);
+            case '(' -> addToken(TokenTy.LParen, start);
+            case ')' -> addToken(TokenTy.RParen, start);
+            case '[' -> addToken(TokenTy.LBracket, start);
+            case ']' -> addToken(TokenTy.RBracket, start);
+            case '+' -> addToken(TokenTy.Add, start);
+            case '-' -> addToken(TokenTy.Sub, start);
+            case '*' -> addToken(TokenTy.Mul, start);
+            case '%' -> addToken(TokenTy.Mod, start);
+            case '/' -> addToken(TokenTy.Div, start);
+            case '<' -> addToken(TokenTy.LT, start);
+            case '>' -> addToken(TokenTy.GT, start);
+            case ',' -> addToken(TokenTy.Comma, start);
+            case '^' -> addToken(TokenTy.Caret, start);
+            case '$' -> addToken(TokenTy.Dollar, start);
+            // only a script of many lines has these, see Parser.parseScript
+            case '\n' -> addToken(TokenTy.Newline, start);
             case '|' -> {
                 if (expect('|')) {
-                    addToken(TokenTy.Or, "||");
+                    addToken(TokenTy.Or, start);
                 } else {
                     throw new Exception("Found a single '|', did you mean '||'?");
                 }
             }
             case '&' -> {
                 if (expect('&')) {
-                    addToken(TokenTy.And, "&&");
+                    addToken(TokenTy.And, start);
                 } else {
                     throw new Exception("Found a single '&', did you mean '&&'?");
                 }
             }
             case '.' -> {
                 if (expect('.')) {
-                    addToken(TokenTy.DotDot, "..");
+                    addToken(TokenTy.DotDot, start);
                 } else {
                     throw new Exception("Found a single '.', did you mean '..'?");
                 }
             }
             case '=' -> {
                 if (expect('=')) {
-                    addToken(TokenTy.EQ, "==");
+                    addToken(TokenTy.EQ, start);
                 } else if (expect('>')) {
-                    addToken(TokenTy.Arrow, "=>");
+                    addToken(TokenTy.Arrow, start);
                 } else {
-                    addToken(TokenTy.Assign, "=");
+                    addToken(TokenTy.Assign, start);
                 }
             }
             default -> {
@@ -824,7 +2014,7 @@ class Tokenizer {
         };
     }
 
-    public static ArrayList<Token> tokenize(String input) throws Exception {
+    public static Tokens tokenize(String input) throws Exception {
         Tokenizer t = new Tokenizer(input);
 
         while (!t.isFinished()) {
@@ -847,8 +2037,8 @@ class Tokenizer {
             // a non-keyword identifier
             var t0 = new Tokenizer("valid_identifier");
             t0.scanIdent();
-            assert t0.output.get(0).ty == TokenTy.Ident;
-            assert t0.output.get(0).lexeme.equals("valid_identifier");
+            assert t0.output.ty(0) == TokenTy.Ident;
+            assert t0.output.lexeme(0).equals("valid_identifier");
 
             // keywords
             String keywords = "if then else let fn for in";
@@ -860,10 +2050,8 @@ class Tokenizer {
                 var t1 = new Tokenizer(keywordLS[i]);
                 t1.scanIdent();
 
-                Token t = t1.output.get(0);
-
-                assert t.ty == kwTokens[i];
-                assert t.lexeme.equals(keywordLS[i]);
+                assert t1.output.ty(0) == kwTokens[i];
+                assert t1.output.lexeme(0).equals(keywordLS[i]);
             }
         }
 
@@ -876,10 +2064,8 @@ class Tokenizer {
                 var t1 = new Tokenizer(numberLS[i]);
                 t1.scanNumber();
 
-                Token t = t1.output.get(0);
-
-                assert t.ty == TokenTy.Number;
-                assert t.lexeme.equals(numberLS[i]);
+                assert t1.output.ty(0) == TokenTy.Number;
+                assert t1.output.lexeme(0).equals(numberLS[i]);
             }
         }
 
@@ -890,73 +2076,98 @@ class Tokenizer {
             Tokenizer t = new Tokenizer(input);
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.For;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("for");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.For;
+            assert t.output.lexeme(t.output.size() - 1).equals("for");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.Ident;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("x");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.Ident;
+            assert t.output.lexeme(t.output.size() - 1).equals("x");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.In;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("in");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.In;
+            assert t.output.lexeme(t.output.size() - 1).equals("in");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.LBracket;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("[");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.LBracket;
+            assert t.output.lexeme(t.output.size() - 1).equals("[");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.Number;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("10");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.Number;
+            assert t.output.lexeme(t.output.size() - 1).equals("10");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.DotDot;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("..");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.DotDot;
+            assert t.output.lexeme(t.output.size() - 1).equals("..");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.Number;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("12");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.Number;
+            assert t.output.lexeme(t.output.size() - 1).equals("12");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.RBracket;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("]");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.RBracket;
+            assert t.output.lexeme(t.output.size() - 1).equals("]");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.Number;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("15");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.Number;
+            assert t.output.lexeme(t.output.size() - 1).equals("15");
 
             t.addNextToken();
-            assert t.output.get(t.output.size() - 1).ty == TokenTy.Let;
-            assert t.output.get(t.output.size() - 1).lexeme.equals("let");
+            assert t.output.ty(t.output.size() - 1) == TokenTy.Let;
+            assert t.output.lexeme(t.output.size() - 1).equals("let");
         }
 
         {
             // tests tokenize()
-            ArrayList<Token> tokens = tokenize("for x in [0..15]");
+            Tokens tokens = tokenize("for x in [0..15]");
 
-            assert tokens.get(0).ty == TokenTy.For;
-            assert tokens.get(0).lexeme.equals("for");
+            assert tokens.ty(0) == TokenTy.For;
+            assert tokens.lexeme(0).equals("for");
 
-            assert tokens.get(1).ty == TokenTy.Ident;
-            assert tokens.get(1).lexeme.equals("x");
+            assert tokens.ty(1) == TokenTy.Ident;
+            assert tokens.lexeme(1).equals("x");
 
-            assert tokens.get(2).ty == TokenTy.In;
-            assert tokens.get(2).lexeme.equals("in");
+            assert tokens.ty(2) == TokenTy.In;
+            assert tokens.lexeme(2).equals("in");
 
-            assert tokens.get(3).ty == TokenTy.LBracket;
-            assert tokens.get(3).lexeme.equals("[");
+            assert tokens.ty(3) == TokenTy.LBracket;
+            assert tokens.lexeme(3).equals("[");
 
-            assert tokens.get(4).ty == TokenTy.Number;
-            assert tokens.get(4).lexeme.equals("0");
+            assert tokens.ty(4) == TokenTy.Number;
+            assert tokens.lexeme(4).equals("0");
 
-            assert tokens.get(5).ty == TokenTy.DotDot;
-            assert tokens.get(5).lexeme.equals("..");
+            assert tokens.ty(5) == TokenTy.DotDot;
+            assert tokens.lexeme(5).equals("..");
 
-            assert tokens.get(6).ty == TokenTy.Number;
-            assert tokens.get(6).lexeme.equals("15");
+            assert tokens.ty(6) == TokenTy.Number;
+            assert tokens.lexeme(6).equals("15");
 
-            assert tokens.get(7).ty == TokenTy.RBracket;
-            assert tokens.get(7).lexeme.equals("]");
+            assert tokens.ty(7) == TokenTy.RBracket;
+            assert tokens.lexeme(7).equals("]");
+        }
+
+        {
+            // every occurrence of an identifier shares one String, and
+            // spaces anywhere are skipped
+            Tokens tokens = tokenize("  fib(n - 1) + fib(n - 2)   ");
+            assert tokens.size() == 13;
+            assert tokens.lexeme(0).equals("fib") && tokens.lexeme(0) == tokens.lexeme(7);
+            assert tokens.lexeme(2) == tokens.lexeme(9);
+            assert tokens.toString(0).equals("Ident 'fib'") && tokens.toString(6).equals("Add");
+            assert tokens.ty(13) == TokenTy.EOF && tokens.lexeme(13) == null;
+
+            // escapes are only unescaped in characters and strings
+            tokens = tokenize("'\\u0041' \"a\\\"b\" 12345678901234567890");
+            assert tokens.lexeme(0).equals("A") && tokens.lexeme(1).equals("a\"b");
+            assert tokens.number(2).toString().equals("12345678901234567890");
+
+            // enough names that the table grows
+            StringBuilder many = new StringBuilder();
+            for (int i = 0; i < 100; i += 1) {
+                many.append("x").append(i).append(" y ");
+            }
+            tokens = tokenize(many.toString());
+            assert tokens.size() == 200 && tokens.lexeme(199) == tokens.lexeme(1);
+            assert tokens.lexeme(198).equals("x99");
         }
     }
 }
@@ -1023,9 +2234,9 @@ class PrefixBindingPower {
  */
 class Parser {
     int position;
-    ArrayList<Token> tokens;
+    Tokens tokens;
 
-    private Parser(ArrayList<Token> tokens) {
+    private Parser(Tokens tokens) {
         this.position = 0;
         this.tokens = tokens;
     }
@@ -1034,26 +2245,25 @@ class Parser {
         return this.position >= this.tokens.size();
     }
 
-    private Token peek() {
-        return isFinished() ? Token.EOF() : tokens.get(position);
+    // the type of the next token, EOF if there are none left
+    private TokenTy peek() {
+        return tokens.ty(position);
     }
 
-    private Token eat() {
+    // the index of the next token, which is EOF if it's past the end
+    private int eat() {
+        int ret = position;
         if (!isFinished()) {
-            Token ret = tokens.get(position);
             position += 1;
-            return ret;
-        } else {
-            return Token.EOF();
         }
+        return ret;
     }
 
     private boolean expect(TokenTy expected) {
         if (isFinished())
             return false;
 
-        Token c = tokens.get(position);
-        if (c.ty == expected) {
+        if (tokens.ty(position) == expected) {
             position += 1;
             return true;
         } else {
@@ -1062,9 +2272,9 @@ class Parser {
     }
 
     private void assertNext(TokenTy expected) throws Exception {
-        var nx = eat();
-        if (nx.ty != expected) {
-            throw new Exception(String.format("Expected %s, got %s", expected.toString(), nx.toString()));
+        int nx = eat();
+        if (tokens.ty(nx) != expected) {
+            throw new Exception(String.format("Expected %s, got %s", expected.toString(), tokens.toString(nx)));
         }
     }
 
@@ -1078,19 +2288,19 @@ class Parser {
     }
 
     private Expr parseList() throws Exception {
-        if (peek().ty != TokenTy.RBracket) {
+        if (peek() != TokenTy.RBracket) {
             Expr first = exprBP(0);
 
-            if (peek().ty == TokenTy.For) {
+            if (peek() == TokenTy.For) {
                 // list comprehension
                 assertNext(TokenTy.For);
 
-                Token ident = eat();
-                if (ident.ty != TokenTy.Ident) {
+                int ident = eat();
+                if (tokens.ty(ident) != TokenTy.Ident) {
                     throw new Exception("Invalid list comp, expected an identifier after 'for'.");
                 }
 
-                String name = ident.lexeme;
+                String name = tokens.lexeme(ident);
 
                 assertNext(TokenTy.In);
 
@@ -1098,20 +2308,20 @@ class Parser {
 
                 ArrayList<String> argNames = new ArrayList<>();
                 argNames.add(name);
-                Atom mapLambda = new Atom.Lambda(first, argNames);
+                Expr mapLambda = new Expr.LambdaExpr(first, argNames);
 
                 ArrayList<Expr> args = new ArrayList<>(2);
-                args.add(new Expr.AtomicExpr(mapLambda));
+                args.add(mapLambda);
                 args.add(list);
 
                 Expr fmap = new Expr.LambdaCall("fmap", args);
 
                 if (expect(TokenTy.If)) {
                     Expr cond = exprBP(0);
-                    Atom filterLambda = new Atom.Lambda(cond, argNames);
+                    Expr filterLambda = new Expr.LambdaExpr(cond, argNames);
 
                     ArrayList<Expr> filterArgs = new ArrayList<>(2);
-                    filterArgs.add(new Expr.AtomicExpr(filterLambda));
+                    filterArgs.add(filterLambda);
                     filterArgs.add(fmap);
 
                     assertNext(TokenTy.RBracket);
@@ -1120,7 +2330,7 @@ class Parser {
                     assertNext(TokenTy.RBracket);
                     return fmap;
                 }
-            } else if (peek().ty == TokenTy.DotDot) {
+            } else if (peek() == TokenTy.DotDot) {
                 // range literal
                 assertNext(TokenTy.DotDot);
 
@@ -1137,26 +2347,40 @@ class Parser {
                 ArrayList<Expr> out = new ArrayList<>();
                 out.add(first);
 
-                if (peek().ty != TokenTy.RBracket) {
+                if (peek() != TokenTy.RBracket) {
                     while (expect(TokenTy.Comma)) {
                         out.add(exprBP(0));
                     }
                 }
 
                 assertNext(TokenTy.RBracket);
-                return new Expr.AtomicExpr(new Atom.List(out));
+                return listLiteral(out);
             }
         } else {
             assertNext(TokenTy.RBracket);
-            return new Expr.AtomicExpr(new Atom.List(new ArrayList<>()));
+            return listLiteral(new ArrayList<>());
+        }
+    }
+
+    // lists are immutable, so a literal of only constants can be built once
+    // here instead of every time it's evaluated
+    static Expr listLiteral(ArrayList<Expr> elements) {
+        Atom[] items = new Atom[elements.size()];
+        for (int i = 0; i < items.length; i += 1) {
+            Expr e = elements.get(i);
+            if (!(e instanceof Expr.AtomicExpr) || ((Expr.AtomicExpr) e).val instanceof Atom.Ident) {
+                return new Expr.ListExpr(elements);
+            }
+            items[i] = ((Expr.AtomicExpr) e).val;
         }
+        return new Expr.AtomicExpr(new Atom.List(items));
     }
 
     private ArrayList<Expr> parseCallArgs() throws Exception {
         assertNext(TokenTy.LParen);
         ArrayList<Expr> out = new ArrayList<>();
 
-        if (peek().ty != TokenTy.RParen) {
+        if (peek() != TokenTy.RParen) {
             do {
                 out.add(exprBP(0));
             } while (expect(TokenTy.Comma));
@@ -1167,8 +2391,8 @@ class Parser {
     }
 
     private Expr parseLetExpr() throws Exception {
-        Token ident = eat();
-        if (ident.ty != TokenTy.Ident) {
+        int ident = eat();
+        if (tokens.ty(ident) != TokenTy.Ident) {
             throw new Exception("Invalid let expression");
         }
 
@@ -1176,7 +2400,7 @@ class Parser {
 
         Expr rhs = exprBP(0);
 
-        return new Expr.AssignExpr(ident.lexeme, rhs);
+        return new Expr.AssignExpr(tokens.lexeme(ident), rhs);
     }
 
     private Expr parseLambdaExpr() throws Exception {
@@ -1184,13 +2408,13 @@ class Parser {
 
         ArrayList<String> argNames = new ArrayList<>();
 
-        if (peek().ty != TokenTy.RParen) {
+        if (peek() != TokenTy.RParen) {
             do {
-                Token nx = eat();
-                if (nx.ty != TokenTy.Ident) {
-                    throw new Exception(String.format("Unexpected %s", nx.toString()));
+                int nx = eat();
+                if (tokens.ty(nx) != TokenTy.Ident) {
+                    throw new Exception(String.format("Unexpected %s", tokens.toString(nx)));
                 }
-                argNames.add(nx.lexeme);
+                argNames.add(tokens.lexeme(nx));
             } while (expect(TokenTy.Comma));
         }
         assertNext(TokenTy.RParen);
@@ -1199,25 +2423,26 @@ class Parser {
 
         Expr expr = exprBP(0);
 
-        return new Expr.AtomicExpr(new Atom.Lambda(expr, argNames));
+        return new Expr.LambdaExpr(expr, argNames);
     }
 
     private Expr exprBP(int minBP) throws Exception {
-        Token nx = eat();
-        Expr lhs = switch (nx.ty) {
-            case True -> new Expr.AtomicExpr(new Atom.Bool(true));
-            case False -> new Expr.AtomicExpr(new Atom.Bool(false));
-            case Number -> new Expr.AtomicExpr(new Atom.Val(Integer.parseInt(nx.lexeme)));
+        int nx = eat();
+        TokenTy ty = tokens.ty(nx);
+        Expr lhs = switch (ty) {
+            case True -> new Expr.AtomicExpr(Atom.Bool.TRUE);
+            case False -> new Expr.AtomicExpr(Atom.Bool.FALSE);
+            case Number -> new Expr.AtomicExpr(tokens.number(nx));
             case Ident -> {
-                if (peek().ty == TokenTy.LParen) {
+                if (peek() == TokenTy.LParen) {
                     ArrayList<Expr> vars = parseCallArgs();
-                    yield new Expr.LambdaCall(nx.lexeme, vars);
+                    yield new Expr.LambdaCall(tokens.lexeme(nx), vars);
                 } else {
-                    yield new Expr.AtomicExpr(new Atom.Ident(nx.lexeme));
+                    yield new Expr.AtomicExpr(new Atom.Ident(tokens.lexeme(nx)));
                 }
             }
-            case Character -> new Expr.AtomicExpr(new Atom.Char(nx.lexeme.charAt(0)));
-            case String -> new Expr.AtomicExpr(new Atom.Str(nx.lexeme));
+            case Character -> new Expr.AtomicExpr(Atom.Char.of(tokens.lexeme(nx).charAt(0)));
+            case String -> new Expr.AtomicExpr(new Atom.Str(tokens.lexeme(nx)));
             case Let -> parseLetExpr();
             case Fn -> parseLambdaExpr();
             case If -> parseIfExpr();
@@ -1228,7 +2453,7 @@ class Parser {
                 yield temp;
             }
             case Sub, Caret, Dollar -> {
-                PrefixOp op = switch (nx.ty) {
+                PrefixOp op = switch (ty) {
                     case Sub -> PrefixOp.Negate;
                     case Caret -> PrefixOp.Head;
                     case Dollar -> PrefixOp.Tail;
@@ -1239,12 +2464,11 @@ class Parser {
                 Expr rhs = exprBP(bp.right);
                 yield new Expr.PrefixExpr(op, rhs);
             }
-            default -> throw new Exception(String.format("Expected an expression, found: %s", nx.toString()));
+            default -> throw new Exception(String.format("Expected an expression, found: %s", tokens.toString(nx)));
         };
 
         for (;;) {
-            Token opToken = peek();
-            BinOp op = switch (opToken.ty) {
+            BinOp op = switch (peek()) {
                 case Add -> BinOp.Add;
                 case Sub -> BinOp.Sub;
                 case Mul -> BinOp.Mul;
@@ -1277,11 +2501,54 @@ class Parser {
         return lhs;
     }
 
+    /**
+     * Parses exactly one expression. A trailing newline is fine, but anything
+     * after it is an error rather than ignored; a script of one expression per
+     * line goes through parseScript.
+     */
     public static Expr parseExpr(String input) throws Exception {
-        ArrayList<Token> tokens = Tokenizer.tokenize(input);
+        Tokens tokens = Tokenizer.tokenize(input);
         Parser p = new Parser(tokens);
 
-        return p.exprBP(0);
+        Expr expr = p.exprBP(0);
+        while (p.expect(TokenTy.Newline)) {
+            // like the one a line read with its terminator ends in
+        }
+        if (!p.isFinished()) {
+            throw new Exception(String.format("Expected one expression, got %s after it", tokens.toString(p.position)));
+        }
+        return expr;
+    }
+
+    /**
+     * Parses a script of one expression per line, in one pass over the whole
+     * source. Blank lines are skipped, and the line each expression is on is
+     * added to lines. An error is reported with its line.
+     */
+    public static ArrayList<Expr> parseScript(String input, ArrayList<Integer> lines) throws Exception {
+        Tokens tokens = Tokenizer.tokenize(input);
+        Parser p = new Parser(tokens);
+        ArrayList<Expr> exprs = new ArrayList<>();
+
+        int line = 1;
+        for (;;) {
+            while (p.expect(TokenTy.Newline)) {
+                line += 1;
+            }
+            if (p.isFinished()) {
+                return exprs;
+            }
+            try {
+                exprs.add(p.exprBP(0));
+                if (!p.isFinished()) {
+                    p.assertNext(TokenTy.Newline);
+                }
+            } catch (Exception e) {
+                throw new Exception(String.format("line %d: %s", line, e.getMessage()));
+            }
+            lines.add(line);
+            line += 1;
+        }
     }
 
     public static void testParser() throws Exception {
@@ -1293,7 +2560,7 @@ class Parser {
 
         {
             // tests parseIfExpr
-            ArrayList<Token> tokens = Tokenizer.tokenize("(1) then (2) else (5)");
+            Tokens tokens = Tokenizer.tokenize("(1) then (2) else (5)");
             Parser p = new Parser(tokens);
             Expr.IfExpr expr = (Expr.IfExpr) p.parseIfExpr();
             assert expr.toString().equals("if (1) then (2) else (5)");
@@ -1301,17 +2568,23 @@ class Parser {
 
         {
             // tests parseList
-            ArrayList<Token> tokens = Tokenizer.tokenize("1, 3, 2, 4]");
+            Tokens tokens = Tokenizer.tokenize("1, 3, 2, 4]");
             Parser p = new Parser(tokens);
             Expr.AtomicExpr expr = (Expr.AtomicExpr) p.parseList();
             assert expr.toString().equals("[1, 3, 2, 4]");
 
-            ArrayList<Token> tokensRange = Tokenizer.tokenize("0..10]");
+            // only lists of constants are built by the parser
+            Parser parserVars = new Parser(Tokenizer.tokenize("x, [1]]"));
+            Expr.ListExpr exprVars = (Expr.ListExpr) parserVars.parseList();
+            assert exprVars.toString().equals("[\"x\", [1]]");
+            assert exprVars.elements.get(1) instanceof Expr.AtomicExpr;
+
+            Tokens tokensRange = Tokenizer.tokenize("0..10]");
             Parser parserRange = new Parser(tokensRange);
             Expr.LambdaCall exprRange = (Expr.LambdaCall) parserRange.parseList();
             assert exprRange.toString().equals("range([0, 10])");
 
-            ArrayList<Token> tokensComp = Tokenizer.tokenize("x * 2 for x in [2..5]]");
+            Tokens tokensComp = Tokenizer.tokenize("x * 2 for x in [2..5]]");
             Parser parserComp = new Parser(tokensComp);
             Expr.LambdaCall exprComp = (Expr.LambdaCall) parserComp.parseList();
             assert exprComp.toString().equals("fmap([Lambda {expr: Mul, (\"x\", 2), argNames: [x]}, range([2, 5])])");
@@ -1319,7 +2592,7 @@ class Parser {
 
         {
             // tests parseCallArgs
-            ArrayList<Token> tokens = Tokenizer.tokenize("(2, 4, 6, 8, fib)");
+            Tokens tokens = Tokenizer.tokenize("(2, 4, 6, 8, fib)");
             Parser p = new Parser(tokens);
             ArrayList<Expr> out = p.parseCallArgs();
             assert out.toString().equals("[2, 4, 6, 8, \"fib\"]");
@@ -1327,7 +2600,7 @@ class Parser {
 
         {
             // tests parseLetExpr
-            ArrayList<Token> tokens = Tokenizer.tokenize("x = 5");
+            Tokens tokens = Tokenizer.tokenize("x = 5");
             Parser p = new Parser(tokens);
             Expr.AssignExpr expr = (Expr.AssignExpr) p.parseLetExpr();
             assert expr.toString().equals("let x = 5");
@@ -1338,6 +2611,181 @@ class Parser {
             Expr expr = parseExpr("x + 3 * 5 - 2 / 4");
             assert expr.toString().equals("Sub, (Add, (\"x\", Mul, (3, 5)), Div, (2, 4))");
         }
+
+        {
+            // tests parseScript, one expression per line
+            ArrayList<Integer> lines = new ArrayList<>();
+            ArrayList<Expr> exprs = parseScript("let x = 5\r\n\n  \nx * 2\n", lines);
+            assert exprs.toString().equals("[let x = 5, Mul, (\"x\", 2)]");
+            assert lines.toString().equals("[1, 4]");
+
+            String error = null;
+            try {
+                parseScript("1\n2 3\n4", new ArrayList<>());
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+            assert error.equals("line 2: Expected Newline, got Number 3");
+        }
+    }
+}
+
+/**
+ * @version 0.1.0
+ *
+ *          The Resolver runs over a parsed Expr and binds every variable to
+ *          where it lives at runtime.
+ *
+ *          <p>
+ *          The only locals are lambda arguments, so each lambda gets one Frame
+ *          with a slot per argument. A variable is either an argument of the
+ *          lambda it's used in (depth 0), an argument of an enclosing lambda
+ *          (depth n), or a global, which are still looked up by name since
+ *          they can be defined at any point with let.
+ *          </p>
+ */
+class Resolver {
+    private final Resolver enclosing;
+    private final ArrayList<String> locals;
+
+    // whether a lambda is created in this scope, which captures its frame
+    private boolean captures = false;
+
+    private Resolver(Resolver enclosing, ArrayList<String> locals) {
+        this.enclosing = enclosing;
+        this.locals = locals;
+    }
+
+    /**
+     * Finds a variable, returning {depth, slot}, or null if it's a global.
+     */
+    private int[] lookup(String name) {
+        int depth = 0;
+        for (Resolver r = this; r != null; r = r.enclosing) {
+            int slot = r.locals.lastIndexOf(name);
+            if (slot != -1) {
+                return new int[] { depth, slot };
+            }
+            depth += 1;
+        }
+        return null;
+    }
+
+    /**
+     * Resolves variables in expr. tail is whether expr's value is what the
+     * enclosing lambda returns, which is never true at the top level.
+     */
+    private void resolveExpr(Expr expr, boolean tail) {
+        if (expr instanceof Expr.AtomicExpr) {
+            Atom val = ((Expr.AtomicExpr) expr).val;
+            if (val instanceof Atom.Ident) {
+                Atom.Ident v = (Atom.Ident) val;
+                int[] loc = lookup(v.name);
+                if (loc != null) {
+                    v.depth = loc[0];
+                    v.slot = loc[1];
+                }
+            }
+        } else if (expr instanceof Expr.ListExpr) {
+            for (Expr e : ((Expr.ListExpr) expr).elements) {
+                resolveExpr(e, false);
+            }
+        } else if (expr instanceof Expr.PrefixExpr) {
+            resolveExpr(((Expr.PrefixExpr) expr).rhs, false);
+        } else if (expr instanceof Expr.BinaryExpr) {
+            Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+            resolveExpr(e.lhs, false);
+            resolveExpr(e.rhs, false);
+        } else if (expr instanceof Expr.IfExpr) {
+            Expr.IfExpr e = (Expr.IfExpr) expr;
+            resolveExpr(e.cond, false);
+            resolveExpr(e.lhs, tail);
+            resolveExpr(e.rhs, tail);
+        } else if (expr instanceof Expr.LambdaCall) {
+            Expr.LambdaCall e = (Expr.LambdaCall) expr;
+            int[] loc = lookup(e.name);
+            if (loc != null) {
+                e.depth = loc[0];
+                e.slot = loc[1];
+            }
+            e.tail = tail;
+            for (Expr arg : e.variables) {
+                resolveExpr(arg, false);
+            }
+            if (e.slot == -1 && !e.variables.isEmpty()
+                    && e.variables.get(e.variables.size() - 1) instanceof Expr.LambdaCall) {
+                Expr.LambdaCall last = (Expr.LambdaCall) e.variables.get(e.variables.size() - 1);
+                e.deferLast = last.slot == -1 && last.variables.size() == 2 && Builtins.defers(last.name, e.name);
+            }
+        } else if (expr instanceof Expr.AssignExpr) {
+            resolveExpr(((Expr.AssignExpr) expr).rhs, false);
+        } else if (expr instanceof Expr.LambdaExpr) {
+            Expr.LambdaExpr e = (Expr.LambdaExpr) expr;
+            captures = true;
+            Resolver inner = new Resolver(this, e.argNames);
+            inner.resolveExpr(e.expr, true);
+            e.captures = inner.captures;
+        }
+    }
+
+    /**
+     * Resolves a top level expression in place and returns it. The top level has
+     * no locals, so it gets an empty Frame.
+     */
+    public static Expr resolve(Expr expr) {
+        new Resolver(null, new ArrayList<>()).resolveExpr(expr, false);
+        return expr;
+    }
+
+    public static void testResolver() throws Exception {
+        {
+            // arguments are slots, everything else is a global
+            Expr.LambdaExpr f = (Expr.LambdaExpr) resolve(Parser.parseExpr("fn (a, b) => b + c"));
+            Expr.BinaryExpr body = (Expr.BinaryExpr) f.expr;
+            Atom.Ident b = (Atom.Ident) ((Expr.AtomicExpr) body.lhs).val;
+            Atom.Ident c = (Atom.Ident) ((Expr.AtomicExpr) body.rhs).val;
+            assert b.depth == 0 && b.slot == 1;
+            assert c.slot == -1;
+        }
+
+        {
+            // the lambda of a list comprehension reaches the enclosing arguments
+            Expr.LambdaExpr f = (Expr.LambdaExpr) resolve(Parser.parseExpr("fn (n) => [x * n for x in ls]"));
+            Expr.LambdaCall fmap = (Expr.LambdaCall) f.expr;
+            assert fmap.slot == -1;
+            Expr.LambdaExpr comp = (Expr.LambdaExpr) fmap.variables.get(0);
+            Expr.BinaryExpr body = (Expr.BinaryExpr) comp.expr;
+            Atom.Ident x = (Atom.Ident) ((Expr.AtomicExpr) body.lhs).val;
+            Atom.Ident n = (Atom.Ident) ((Expr.AtomicExpr) body.rhs).val;
+            assert x.depth == 0 && x.slot == 0;
+            assert n.depth == 1 && n.slot == 0;
+        }
+
+        {
+            // calls of an argument are resolved too, shadowing globals
+            Expr.LambdaExpr f = (Expr.LambdaExpr) resolve(Parser.parseExpr("fn (fmap, x) => fmap(x)"));
+            Expr.LambdaCall call = (Expr.LambdaCall) f.expr;
+            assert call.depth == 0 && call.slot == 0;
+        }
+
+        {
+            // calls in tail position are marked, arguments and conditions aren't
+            Expr.LambdaExpr f = (Expr.LambdaExpr) resolve(
+                    Parser.parseExpr("fn (n) => if (g(n)) then (h(g(n))) else (fn (x) => g(x))"));
+            Expr.IfExpr body = (Expr.IfExpr) f.expr;
+            Expr.LambdaCall h = (Expr.LambdaCall) body.lhs;
+            assert h.tail;
+            assert !((Expr.LambdaCall) body.cond).tail;
+            assert !((Expr.LambdaCall) h.variables.get(0)).tail;
+            assert f.captures;
+
+            Expr.LambdaExpr inner = (Expr.LambdaExpr) body.rhs;
+            assert ((Expr.LambdaCall) inner.expr).tail;
+            assert !inner.captures;
+
+            // the top level isn't a lambda, so nothing there is a tail call
+            assert !((Expr.LambdaCall) resolve(Parser.parseExpr("g(1)"))).tail;
+        }
     }
 }
 
@@ -1346,41 +2794,158 @@ class Parser {
  * @version 0.1.0
  * 
  *          Because this is an expression based language we don't need to deal
- *          with complicated scoping and whatnot. This keeps the interpreter
- *          very simple.
+ *          with complicated scoping and whatnot. Lambdas close over the
+ *          arguments of the lambdas they're defined in, and everything else is
+ *          a global.
+ *
+ *          An Interpreter is one session: its globals are its own, and it
+ *          should only be used by one thread at a time. Any number of sessions
+ *          can run at once on different threads, since what they share (the
+ *          standard library, the ScriptCache and the programs in it) is never
+ *          changed.
  *
  */
 public class Interpreter {
-    HashMap<String, Atom> globals;
+    /**
+     * Which evaluator runs the parsed expressions. TreeWalk calls Expr.eval
+     * directly, Bytecode compiles every expression to a Chunk and runs it on
+     * the VM.
+     */
+    public enum Engine {
+        TreeWalk, Bytecode,
+    }
+
+    Globals globals;
+    Engine engine;
+    VM vm;
+    ScriptCache cache;
+
+    // where execute prints, made on first use unless setOutput was called
+    private Appendable output;
+
+    // held by a ScriptExecutor while it runs a script of this session; fair,
+    // so that scripts run in the order they were submitted
+    final ReentrantLock running = new ReentrantLock(true);
 
     public Interpreter() throws Exception {
-        globals = new HashMap<>();
+        this(Engine.TreeWalk);
+    }
 
-        // small standard library
-        execute("let range = fn(a, b) => if (a == b - 1) then ([a]) else ([a] + range(a + 1, b))");
-        execute("let fmap = fn(f, ls) => if (ls) then ([f(^ls)] + fmap(f, $ls)) else ([])");
-        execute("let filter = fn(f, ls) => if (ls) then (if (f(^ls)) then ([^ls] + filter(f, $ls)) else (filter(f, $ls))) else ([])");
-        execute("let fold = fn(f, acc, ls) => if (ls) then (fold(f, f(acc, ^ls), $ls)) else (acc)");
-        execute("let sum = fn(ls) => fold(fn (a, b) => a + b, 0, ls)");
-        execute("let product = fn(ls) => fold(fn (a, b) => a * b, 1, ls)");
-        execute("let reverse = fn(ls) => fold(fn (rs, el) => [el] + rs, [], ls)");
+    public Interpreter(Engine engine) throws Exception {
+        this(engine, ScriptCache.SHARED);
+    }
+
+    public Interpreter(Engine engine, ScriptCache cache) throws Exception {
+        // the standard library is shared, so a new session doesn't have to
+        // define it again
+        globals = new Globals(Builtins.STDLIB);
+        this.engine = engine;
+        this.cache = cache;
+        if (engine == Engine.Bytecode) {
+            vm = new VM(globals);
+        }
+    }
+
+    /**
+     * Limits every script run after this to budget, or lifts the limits if
+     * it's null. Going over a limit throws a LimitException.
+     */
+    public void setBudget(Budget budget) {
+        globals.budget = budget;
+    }
+
+    /**
+     * Records every script run after this in profile, or stops profiling if
+     * it's null. While it's set, scripts run on the tree walker even if this
+     * session's engine is Bytecode.
+     */
+    public void setProfile(Profile profile) {
+        globals.profile = profile;
     }
 
     public Atom eval(String expr) throws Exception {
-        return Parser.parseExpr(expr).eval(globals);
+        // a source that was run before isn't tokenized, parsed or compiled again
+        return run(cache.get(expr));
+    }
+
+    /**
+     * Runs a script that was already parsed and resolved, like every line of
+     * a Batch.
+     */
+    Atom run(ScriptCache.Script script) throws Exception {
+        if (globals.budget != null) {
+            globals.budget.reset();
+        }
+        Profile profile = globals.profile;
+        if (profile != null) {
+            profile.begin();
+            try {
+                return script.expr.eval(new Frame(new Atom[0], null, globals));
+            } finally {
+                profile.end();
+            }
+        }
+        return switch (engine) {
+            case TreeWalk -> script.expr.eval(new Frame(new Atom[0], null, globals));
+            case Bytecode -> vm.run(script.compiled());
+        };
     }
 
+    /**
+     * Sends the result of every execute after this to out, which is flushed
+     * after each one if it's Flushable. By default results go to a buffer of
+     * the session's own in front of System.out, so a result is formatted
+     * without holding System.out's lock, and written to it all at once.
+     */
+    public void setOutput(Appendable out) {
+        this.output = out;
+    }
+
+    /**
+     * Evaluates expr and prints the result, unless it's unit.
+     */
     public void execute(String expr) throws Exception {
-        Atom res = eval(expr);
+        if (output == null) {
+            output = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        }
+        execute(expr, output);
+        if (output instanceof Flushable) {
+            ((Flushable) output).flush();
+        }
+    }
+
+    /**
+     * Like execute, but writes the result to out, which isn't flushed, so
+     * that many results can go out in one write.
+     */
+    public void execute(String expr, Appendable out) throws Exception {
+        print(eval(expr), out);
+    }
+
+    static void print(Atom res, Appendable out) throws IOException {
         if (!(res instanceof Atom.Unit)) {
-            System.out.println(res.toString());
+            res.print(out);
+            out.append('\n');
         }
     }
 
     public static void main(String[] args) throws Exception {
         Tokenizer.testTokenizer();
         Parser.testParser();
+        Resolver.testResolver();
+        Optimizer.testOptimizer();
         Expr.testExpr();
+        Builtins.testBuiltins();
+        ScriptCache.testScriptCache();
+        Globals.testGlobals();
+        ScriptExecutor.testScriptExecutor();
+        Budget.testBudget();
+        Profile.testProfile();
+        Batch.testBatch();
+        Snapshot.testSnapshot();
+        Memo.testMemo();
+        Compiler.testCompiler();
+        VM.testVM();
 
         // Some full stack tests
         //
@@ -1410,32 +2975,32 @@ public class Interpreter {
 
         Atom val6 = i.eval("range(5, 10)");
         assert val6 instanceof Atom.List;
-        ArrayList<Expr> list1 = new ArrayList<>();
-        list1.add(new Expr.AtomicExpr(new Atom.Val(5)));
-        list1.add(new Expr.AtomicExpr(new Atom.Val(6)));
-        list1.add(new Expr.AtomicExpr(new Atom.Val(7)));
-        list1.add(new Expr.AtomicExpr(new Atom.Val(8)));
-        list1.add(new Expr.AtomicExpr(new Atom.Val(9)));
-        assert ((Atom.List) val6).list.toString().equals(list1.toString());
+        ArrayList<Atom> list1 = new ArrayList<>();
+        list1.add(new Atom.Val(5));
+        list1.add(new Atom.Val(6));
+        list1.add(new Atom.Val(7));
+        list1.add(new Atom.Val(8));
+        list1.add(new Atom.Val(9));
+        assert val6.toString().equals(new Atom.List(list1).toString());
 
         Atom val7 = i.eval("range(0, 20)");
         Atom val8 = i.eval("[0..20]");
-        assert ((Atom.List) val7).list.toString().equals(((Atom.List) val8).list.toString());
+        assert val7.toString().equals(val8.toString());
 
-        Atom val9 = i.eval("fmap(fn (n) => n * 2, [0..3]))");
-        ArrayList<Expr> list2 = new ArrayList<>();
-        list2.add(new Expr.AtomicExpr(new Atom.Val(0)));
-        list2.add(new Expr.AtomicExpr(new Atom.Val(2)));
-        list2.add(new Expr.AtomicExpr(new Atom.Val(4)));
-        assert ((Atom.List) val9).list.toString().equals(list2.toString());
+        Atom val9 = i.eval("fmap(fn (n) => n * 2, [0..3])");
+        ArrayList<Atom> list2 = new ArrayList<>();
+        list2.add(new Atom.Val(0));
+        list2.add(new Atom.Val(2));
+        list2.add(new Atom.Val(4));
+        assert val9.toString().equals(new Atom.List(list2).toString());
 
         Atom val10 = i.eval("filter(fn (n) => n % 3 == 0, [0..10])");
-        ArrayList<Expr> list3 = new ArrayList<>();
-        list3.add(new Expr.AtomicExpr(new Atom.Val(0)));
-        list3.add(new Expr.AtomicExpr(new Atom.Val(3)));
-        list3.add(new Expr.AtomicExpr(new Atom.Val(6)));
-        list3.add(new Expr.AtomicExpr(new Atom.Val(9)));
-        assert ((Atom.List) val10).list.toString().equals(list3.toString());
+        ArrayList<Atom> list3 = new ArrayList<>();
+        list3.add(new Atom.Val(0));
+        list3.add(new Atom.Val(3));
+        list3.add(new Atom.Val(6));
+        list3.add(new Atom.Val(9));
+        assert val10.toString().equals(new Atom.List(list3).toString());
 
         Atom val11 = i.eval("fold(fn (acc, n) => acc + n, 0, [1..1000])");
         Atom val12 = i.eval("sum(range(1, 1000))");
@@ -1449,6 +3014,218 @@ public class Interpreter {
 
         assert ((Atom.Val) val13).val == 2178309;
 
+        // lists share storage, so growing one of them mustn't change another
+        i.eval("let front = [1] + [2, 3, 4]");
+        i.eval("let back = [1, 2, 3] + [4]");
+        Atom val14 = i.eval("[0] + front");
+        Atom val15 = i.eval("[9] + front");
+        Atom val16 = i.eval("$back + [5]");
+        Atom val17 = i.eval("$back + [6]");
+        assert val14.toString().equals("[0, 1, 2, 3, 4]");
+        assert val15.toString().equals("[9, 1, 2, 3, 4]");
+        assert val16.toString().equals("[2, 3, 4, 5]");
+        assert val17.toString().equals("[2, 3, 4, 6]");
+        assert i.eval("front").toString().equals(i.eval("back").toString());
+
+        // lists of numbers and strings are stored unboxed until they're mixed
+        assert ((Atom.List) i.eval("[1..4] + [4]")).holdsLongs();
+        assert !((Atom.List) i.eval("[1, 2] + \"ab\"")).holdsLongs();
+        assert i.eval("[1, 2] + \"ab\"").toString().equals("[1, 2, 'a', 'b']");
+        assert i.eval("\"ab\" + \"cd\"").toString().equals("\"abcd\"");
+        assert i.eval("$([1] + \"ab\")").toString().equals("\"ab\"");
+        assert ((Atom.Char) i.eval("^\"ab\"")).val == 'a';
+
+        // lists are values, so neither referencing one nor a constant literal copies
+        i.eval("let big = [0..100000]");
+        assert i.eval("big") == i.eval("big");
+        i.eval("let lit = fn (n) => [1, [2, 3]]");
+        assert i.eval("lit(1)") == i.eval("lit(2)");
+
+        // small numbers, booleans and unit are shared instead of allocated
+        assert i.eval("1 + 1") == i.eval("4 - 2");
+        i.eval("let n = 100000");
+        assert i.eval("n + 1") != i.eval("n + 1");
+        // but a constant is only computed once
+        assert i.eval("100000 + 1") == i.eval("100000 + 1");
+        assert i.eval("1 < 2") == Atom.Bool.TRUE;
+        assert i.eval("let y = 1") == Atom.Unit.UNIT;
+
+        // numbers are longs until they overflow, and go back once they fit again
+        assert ((Atom.Val) i.eval("3000000000 * 3")).val == 9000000000L;
+        Atom big = i.eval("9223372036854775807 + 1");
+        assert big instanceof Atom.Big;
+        assert big.toString().equals("9223372036854775808");
+        assert i.eval("9223372036854775808 - 1") instanceof Atom.Val;
+        assert i.eval("-(0 - 9223372036854775807 - 1)").toString().equals("9223372036854775808");
+        assert i.eval("2 * 9223372036854775807 > 9223372036854775807") == Atom.Bool.TRUE;
+        assert i.eval("100000000000000000000 % 7").toString().equals("2");
+
+        // calls in tail position don't grow the stack, and a frame that was
+        // captured by a lambda isn't reused
+        i.eval("let count = fn (n, acc) => if (n == 0) then (acc) else (count(n - 1, acc + n))");
+        assert i.eval("count(1000000, 0)").toString().equals("500000500000");
+        i.eval("let is_even = fn (n) => if (n == 0) then (true) else (is_odd(n - 1))");
+        i.eval("let is_odd = fn (n) => if (n == 0) then (false) else (is_even(n - 1))");
+        assert i.eval("is_even(1000001)") == Atom.Bool.FALSE;
+        i.eval("let last = fn (n, f) => if (n == 0) then (f(0)) else (last(n - 1, fn (x) => n))");
+        assert i.eval("last(3, fn (x) => 99)").toString().equals("1");
+
+        // interpreters share parsed programs but not globals
+        Interpreter other = new Interpreter(Engine.TreeWalk, i.cache);
+        long hits = i.cache.hits();
+        other.eval("let count = 5");
+        assert other.eval("count").toString().equals("5");
+        assert i.eval("count") instanceof Atom.Lambda;
+        assert i.cache.hits() == hits + 1;
+
+        // sessions on a thread pool don't see each other's globals
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ArrayList<Future<String>> sessions = new ArrayList<>();
+        for (int n = 0; n < 16; n += 1) {
+            int id = n;
+            sessions.add(pool.submit(() -> {
+                Interpreter s = new Interpreter(id % 2 == 0 ? Engine.TreeWalk : Engine.Bytecode);
+                s.eval("let id = " + id);
+                s.eval("let f = fn (x) => x + id");
+                return s.eval("sum(fmap(f, [0..100]))").toString();
+            }));
+        }
+        for (int n = 0; n < 16; n += 1) {
+            assert sessions.get(n).get().equals(String.valueOf(4950 + 100 * n));
+        }
+        pool.shutdown();
+
+        // parallel builtins run on either engine, and their lambdas can't define
+        // globals, whether the list is split or not
+        for (Engine engine : Engine.values()) {
+            Interpreter s = new Interpreter(engine);
+            assert s.eval("preduce(fn (a, b) => a + b, 0, pfmap(fn (x) => x * x, [0..3000]))").toString()
+                    .equals("8995500500");
+            for (String ls : new String[] { "[1, 2]", "[0..3000]" }) {
+                boolean threw = false;
+                try {
+                    s.eval("pfmap(fn (x) => let y = x, " + ls + ")");
+                } catch (Exception e) {
+                    threw = e.getMessage().equals("Can't define y while a parallel builtin is running");
+                }
+                assert threw;
+            }
+            assert s.eval("let y = 1") == Atom.Unit.UNIT;
+
+            // the first error of any slice is the one reported
+            boolean threw = false;
+            try {
+                s.eval("pfilter(fn (x) => if (x == 2500) then (missing(x)) else (true), [0..3000])");
+            } catch (Exception e) {
+                threw = e.getMessage().equals("Undefined lambda 'missing'");
+            }
+            assert threw;
+
+            // with a budget the slices run one after another, and are counted
+            Budget budget = new Budget(1000000, 100000, 100);
+            s.setBudget(budget);
+            assert s.eval("preduce(fn (a, b) => a + b, 0, [0..3000])").toString().equals("4498500");
+            // range and preduce, a call per element, and two to combine the slices
+            assert budget.steps == 2 + 3000 + 2;
+        }
+
+        // eval runs one expression, and says so rather than dropping the
+        // lines after it, which only a Batch runs
+        for (Engine engine : Engine.values()) {
+            Interpreter s = new Interpreter(engine);
+            for (String src : new String[] { "1\n2", "let a = 1\nlet b = 2", "1 2" }) {
+                boolean threw = false;
+                try {
+                    s.eval(src);
+                } catch (Exception e) {
+                    threw = e.getMessage().startsWith("Expected one expression");
+                }
+                assert threw;
+            }
+            assert s.globals.get("a") == null && s.globals.get("b") == null;
+            assert s.eval("1 + 1\n").toString().equals("2");
+        }
+
+        // && and || only evaluate their right hand side if they need it, and
+        // treat lists like if does
+        for (Engine engine : Engine.values()) {
+            Interpreter s = new Interpreter(engine);
+            s.eval("let first_is = fn (ls, x) => ls && ^ls == x");
+            assert s.eval("first_is([], 1)") == Atom.Bool.FALSE;
+            assert s.eval("first_is([1, 2], 1)") == Atom.Bool.TRUE;
+            assert s.eval("true || missing(1)") == Atom.Bool.TRUE;
+            assert s.eval("[x for x in [0..10] if x > 7 || (x > 10 && missing(x))]").toString().equals("[8, 9]");
+            assert s.eval("if (1 < 2 && (2 < 1 || [1])) then (1) else (2)").toString().equals("1");
+            boolean threw = false;
+            try {
+                s.eval("let n = 5");
+                s.eval("n && true");
+            } catch (Exception e) {
+                threw = e.getMessage().equals("Can't coerce 5 to a boolean");
+            }
+            assert threw;
+        }
+
+        // comprehensions passed straight to a builtin that goes through the list
+        // once don't build it, but make the same calls
+        for (Engine engine : Engine.values()) {
+            Interpreter s = new Interpreter(engine);
+            assert s.eval("sum([x * x for x in [0..1000000]])").toString().equals("333332833333500000");
+            assert s.eval("fold(fn (acc, x) => acc + x, 0, [x for x in [0..10] if x % 2 == 1])").toString()
+                    .equals("25");
+            assert s.eval("filter(fn (x) => x > 10, [x * x for x in [0..6]])").toString().equals("[16, 25]");
+
+            Budget budget = new Budget(1000000, 100000, 100);
+            s.setBudget(budget);
+            s.eval("sum([x * x for x in [0..100] if x % 2 == 0])");
+            // range, fmap, filter and sum, and two calls per element
+            assert budget.steps == 4 + 200;
+            s.setBudget(null);
+
+            // unless a builtin was redefined, which gets the list as usual
+            s.eval("let sum = fn (ls) => ls");
+            assert s.eval("sum([x for x in [0..3]])").toString().equals("[0, 1, 2]");
+            s.eval("let fmap = fn (f, ls) => [7]");
+            assert s.eval("filter(fn (x) => true, [x for x in [0..3]])").toString().equals("[7]");
+        }
+
+        // the same programs give the same results on the VM
+        Interpreter vm = new Interpreter(Engine.Bytecode);
+        assert vm.eval("5 + 12 * 3 - 2").toString().equals("39");
+        assert vm.eval("range(5, 10)").toString().equals(val6.toString());
+        assert vm.eval("[x * x for x in [0..5] if x % 2 == 0]").toString().equals("[0, 4, 16]");
+        vm.eval("let fib_step = fn (ls, i) => [^$ls, ^ls + ^$ls]");
+        vm.eval("let efficient_fib = fn (n) => ^$fold(fib_step, [1, 1], [0..n])");
+        assert vm.eval("efficient_fib(30)").toString().equals(val13.toString());
+        assert vm.eval("fold(fn (acc, n) => acc + n, 0, [1..1000])").toString().equals("499500");
+        assert vm.eval("fold(fn (acc, n) => acc + n, 0, [0..100000])").toString().equals("4999950000");
+        vm.eval("let count = fn (n, acc) => if (n == 0) then (acc) else (count(n - 1, acc + n))");
+        assert vm.eval("count(1000000, 0)").toString().equals("500000500000");
+        vm.eval("let last = fn (n, f) => if (n == 0) then (f(0)) else (last(n - 1, fn (x) => n))");
+        assert vm.eval("last(3, fn (x) => 99)").toString().equals("1");
+
+        // printing streams into the session's output, nested lists and all
+        Interpreter printer = new Interpreter();
+        StringBuilder printed = new StringBuilder();
+        printer.setOutput(printed);
+        printer.execute("let xs = [1, [2, \"ab\"], 'c']");
+        printer.execute("xs");
+        printer.execute("[0..3] + [[]]");
+        // an empty list is also the empty string
+        assert printed.toString().equals("[1, [2, \"ab\"], 'c']\n[0, 1, 2, \"\"]\n");
+
+        // in pieces, which add up to the same as toString
+        Atom nested = printer.eval("[[x, \"s\"] for x in [0..100000]]");
+        java.io.StringWriter pieces = new java.io.StringWriter();
+        nested.print(pieces);
+        assert pieces.toString().equals(nested.toString()) && pieces.toString().length() > 1000000;
+
+        // a string made of separate chars is linear too
+        Atom[] chars = new Atom[1000000];
+        Arrays.fill(chars, Atom.Char.of('a'));
+        String str = new Atom.List(chars).toString();
+        assert str.length() == 1000002 && str.startsWith("\"aaa") && str.endsWith("aa\"");
+
         System.out.println("All tests passed!");
     }
 }
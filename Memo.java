@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @version 0.1.0
+ *
+ *          The memo builtin, which wraps a lambda in a cache of its results.
+ *
+ *          <p>
+ *          memo(f) returns a builtin that takes the same arguments as f, and
+ *          only calls f for arguments it hasn't seen yet. Arguments are the
+ *          same if they're equal values, so [1, 2] hits what range(1, 3)
+ *          missed. Since a recursive lambda calls itself through its global,
+ *          let fib = memo(fn (n) => ...) caches the recursive calls too, which
+ *          makes the usual exponential fib linear.
+ *          </p>
+ *
+ *          <p>
+ *          Only a lambda whose body never uses let can be memoized, since
+ *          that's the only thing a lambda can do besides returning a value.
+ *          That doesn't look into the lambdas it calls. The cache keeps the
+ *          CAPACITY most recently used results, and is shared by every thread
+ *          the memoized lambda runs on.
+ *          </p>
+ */
+class Memo implements Atom.Builtin.Body {
+    static final int CAPACITY = 1 << 16;
+
+    // the arguments of one call
+    private static final class Key {
+        final Atom[] args;
+        final int hash;
+
+        Key(Atom[] args) {
+            this.args = args;
+            this.hash = Arrays.hashCode(args);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(((Key) o).args, args);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    final Atom.Lambda f;
+    final int capacity;
+
+    private final LinkedHashMap<Key, Atom> cache;
+    private long hits;
+    private long misses;
+
+    Memo(Atom.Lambda f, int capacity) {
+        this.f = f;
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Atom> eldest) {
+                return size() > Memo.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * memo(f), the builtin.
+     */
+    static Atom memo(Caller caller, Atom[] args) throws Exception {
+        return of(args[0], CAPACITY);
+    }
+
+    static Atom.Builtin of(Atom f, int capacity) throws Exception {
+        if (!(f instanceof Atom.Lambda)) {
+            throw new Exception(String.format("memo expects a lambda, got %s", f));
+        }
+        Atom.Lambda lambda = (Atom.Lambda) f;
+        if (assigns(lambda.expr)) {
+            throw new Exception("memo expects a lambda without let in it");
+        }
+        return new Atom.Builtin("memo", lambda.argNames.size(), new Memo(lambda, capacity));
+    }
+
+    /**
+     * The cache of a builtin memo returned, or null if it isn't one.
+     */
+    static Memo of(Atom memoized) {
+        if (memoized instanceof Atom.Builtin && ((Atom.Builtin) memoized).body instanceof Memo) {
+            return (Memo) ((Atom.Builtin) memoized).body;
+        }
+        return null;
+    }
+
+    private static boolean assigns(Expr expr) {
+        if (expr instanceof Expr.AssignExpr) {
+            return true;
+        } else if (expr instanceof Expr.PrefixExpr) {
+            return assigns(((Expr.PrefixExpr) expr).rhs);
+        } else if (expr instanceof Expr.BinaryExpr) {
+            Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+            return assigns(e.lhs) || assigns(e.rhs);
+        } else if (expr instanceof Expr.IfExpr) {
+            Expr.IfExpr e = (Expr.IfExpr) expr;
+            return assigns(e.cond) || assigns(e.lhs) || assigns(e.rhs);
+        } else if (expr instanceof Expr.LambdaCall) {
+            return ((Expr.LambdaCall) expr).variables.stream().anyMatch(Memo::assigns);
+        } else if (expr instanceof Expr.LambdaExpr) {
+            return assigns(((Expr.LambdaExpr) expr).expr);
+        } else if (expr instanceof Expr.ListExpr) {
+            return ((Expr.ListExpr) expr).elements.stream().anyMatch(Memo::assigns);
+        }
+        return false;
+    }
+
+    public Atom call(Caller caller, Atom[] args) throws Exception {
+        Key key = new Key(args);
+        synchronized (this) {
+            Atom res = cache.get(key);
+            if (res != null) {
+                hits += 1;
+                return res;
+            }
+            misses += 1;
+        }
+
+        // not held while f runs, since it calls back into this
+        Atom res = caller.call("f", f, args);
+        synchronized (this) {
+            // the caller may reuse args once this returns
+            cache.put(new Key(args.clone()), res);
+        }
+        return res;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized String toString() {
+        return String.format("hits: %d, misses: %d, size: %d", hits, misses, size());
+    }
+
+    public static void testMemo() throws Exception {
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter i = new Interpreter(engine);
+            i.eval("let fib = memo(fn (n) => if (n < 2) then (n) else (fib(n - 1) + fib(n - 2)))");
+            assert i.eval("fib(90)").toString().equals("2880067194370816120");
+            Memo fib = of(i.globals.get("fib"));
+            // each n is only computed once, and the second call to each is a hit
+            assert fib.misses() == 91 && fib.hits() == 88 && fib.size() == 91;
+            assert i.eval("fib(90)").toString().equals("2880067194370816120") && fib.hits() == 89;
+
+            // arguments are compared by value, however they're stored
+            i.eval("let len = memo(fn (ls, x) => [x, ls])");
+            Atom first = i.eval("len([1, 2, 3], \"ab\")");
+            assert i.eval("len([1..4], ['a', 'b'])") == first;
+            assert i.eval("len([1, 2, 3], [\"ab\"])") != first;
+            Memo len = of(i.globals.get("len"));
+            assert len.hits() == 1 && len.misses() == 2;
+
+            // a builtin or a lambda that defines a global can't be memoized
+            for (String bad : new String[] { "memo(sum)", "memo(fn (x) => fmap(fn (y) => let z = y, x))" }) {
+                boolean failed = false;
+                try {
+                    i.eval(bad);
+                } catch (Exception e) {
+                    failed = true;
+                }
+                assert failed;
+            }
+        }
+
+        // the least recently used results are evicted first
+        Interpreter i = new Interpreter(Interpreter.Engine.TreeWalk);
+        i.globals.put("sq", of(i.eval("fn (x) => x * x"), 3));
+        i.eval("fmap(sq, [1, 2, 3, 1, 4])");
+        Memo sq = of(i.globals.get("sq"));
+        assert sq.size() == 3 && sq.misses() == 4 && sq.hits() == 1;
+        i.eval("sq(2)");
+        i.eval("sq(1)");
+        assert sq.misses() == 5 && sq.toString().equals("hits: 2, misses: 5, size: 3");
+
+        // equal values have equal hashes
+        String[] same = { "[0..3]", "[0, 1, 2]", "^[[0, 1, 2], 'a']", "[0..3]", "\"ab\"", "['a'] + ['b']",
+                "9223372036854775807 + 1", "9223372036854775807 + 1" };
+        for (int a = 0; a < same.length; a += 2) {
+            Atom lhs = i.eval(same[a]);
+            Atom rhs = i.eval(same[a + 1]);
+            assert lhs.equals(rhs) && lhs.hashCode() == rhs.hashCode();
+        }
+        assert !i.eval("[0, 1]").equals(i.eval("\"ab\"")) && !i.eval("1").equals(i.eval("true"));
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * @version 0.1.0
+ *
+ *          Simplifies a parsed Expr before it's resolved. Constant subtrees
+ *          are evaluated once, an if with a constant condition is replaced by
+ *          the branch it takes, and identities like x * 1 are removed.
+ *
+ *          <p>
+ *          Every rewrite gives the same result as the tree it replaces,
+ *          including the same error. Nothing is statically typed, so an
+ *          identity is only removed when the other operand can only be a
+ *          number, or only a bool: x + 0 is an error if x is a list, and
+ *          stays one. A constant subtree that throws is left for the
+ *          evaluator to throw when it's reached, and sums of lists aren't
+ *          folded, so that the Budget still sees them.
+ *          </p>
+ *
+ *          <p>
+ *          Run with -Drustscript.optimizer.dump=true to print every tree before
+ *          and after to stderr.
+ *          </p>
+ */
+class Optimizer {
+    private static final boolean DUMP = Boolean.getBoolean("rustscript.optimizer.dump");
+
+    /**
+     * Returns the simplified expr. It may reuse and change parts of expr, so
+     * expr shouldn't be used afterwards.
+     */
+    static Expr optimize(Expr expr) {
+        if (!DUMP) {
+            return simplify(expr);
+        }
+        String before = expr.toString();
+        Expr after = simplify(expr);
+        System.err.printf("before: %s%nafter:  %s%n", before, after);
+        return after;
+    }
+
+    private static Expr simplify(Expr expr) {
+        if (expr instanceof Expr.PrefixExpr) {
+            Expr.PrefixExpr e = (Expr.PrefixExpr) expr;
+            e.rhs = simplify(e.rhs);
+            Atom rhs = constant(e.rhs);
+            if (rhs != null) {
+                try {
+                    return new Expr.AtomicExpr(switch (e.op) {
+                        case Negate -> rhs.negate();
+                        case Head -> rhs.head();
+                        case Tail -> rhs.tail();
+                    });
+                } catch (Exception err) {
+                    return e;
+                }
+            }
+            // --x
+            if (e.op == PrefixOp.Negate && e.rhs instanceof Expr.PrefixExpr) {
+                Expr.PrefixExpr inner = (Expr.PrefixExpr) e.rhs;
+                if (inner.op == PrefixOp.Negate && (isInteger(inner.rhs) || isBool(inner.rhs))) {
+                    return inner.rhs;
+                }
+            }
+            return e;
+        } else if (expr instanceof Expr.BinaryExpr) {
+            Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+            e.lhs = simplify(e.lhs);
+            e.rhs = simplify(e.rhs);
+            Atom lhs = constant(e.lhs);
+            Atom rhs = constant(e.rhs);
+            if (lhs != null && rhs != null) {
+                try {
+                    Atom res = apply(e.op, lhs, rhs);
+                    if (!(res instanceof Atom.List)) {
+                        return new Expr.AtomicExpr(res);
+                    }
+                } catch (Exception err) {
+                    // e.g. 1 / 0, which should only fail if it's evaluated
+                }
+                return e;
+            }
+            return identity(e, lhs, rhs);
+        } else if (expr instanceof Expr.IfExpr) {
+            Expr.IfExpr e = (Expr.IfExpr) expr;
+            e.cond = simplify(e.cond);
+            e.lhs = simplify(e.lhs);
+            e.rhs = simplify(e.rhs);
+            Atom cond = constant(e.cond);
+            if (cond != null) {
+                try {
+                    return cond.isTruthy() ? e.lhs : e.rhs;
+                } catch (Exception err) {
+                    return e;
+                }
+            }
+            return e;
+        } else if (expr instanceof Expr.LambdaCall) {
+            Expr.LambdaCall e = (Expr.LambdaCall) expr;
+            e.variables.replaceAll(Optimizer::simplify);
+            return e;
+        } else if (expr instanceof Expr.AssignExpr) {
+            Expr.AssignExpr e = (Expr.AssignExpr) expr;
+            e.rhs = simplify(e.rhs);
+            return e;
+        } else if (expr instanceof Expr.LambdaExpr) {
+            Expr.LambdaExpr e = (Expr.LambdaExpr) expr;
+            e.expr = simplify(e.expr);
+            return e;
+        } else if (expr instanceof Expr.ListExpr) {
+            Expr.ListExpr e = (Expr.ListExpr) expr;
+            e.elements.replaceAll(Optimizer::simplify);
+            // a constant if every element folded to one
+            return Parser.listLiteral(e.elements);
+        } else {
+            return expr;
+        }
+    }
+
+    // the value of a literal, or null if expr isn't one
+    private static Atom constant(Expr expr) {
+        if (expr instanceof Expr.AtomicExpr && !(((Expr.AtomicExpr) expr).val instanceof Atom.Ident)) {
+            return ((Expr.AtomicExpr) expr).val;
+        }
+        return null;
+    }
+
+    private static Atom apply(BinOp op, Atom lhs, Atom rhs) throws Exception {
+        return switch (op) {
+            case Add -> lhs.add(rhs);
+            case Sub -> lhs.sub(rhs);
+            case Mul -> lhs.mul(rhs);
+            case Div -> lhs.div(rhs);
+            case Mod -> lhs.mod(rhs);
+            case LT -> lhs.lt(rhs);
+            case GT -> lhs.gt(rhs);
+            case EQ -> lhs.eq(rhs);
+            case And -> Atom.Bool.of(lhs.isTruthy() && rhs.isTruthy());
+            case Or -> Atom.Bool.of(lhs.isTruthy() || rhs.isTruthy());
+        };
+    }
+
+    /**
+     * Removes x + 0, 0 + x, x - 0, x * 1, 1 * x, x / 1, x && true, true && x,
+     * x || false and false || x, when x is known to be a number or a bool.
+     * false && x and true || x never evaluate x, so they're always constant.
+     */
+    private static Expr identity(Expr.BinaryExpr e, Atom lhs, Atom rhs) {
+        switch (e.op) {
+            case Add -> {
+                if (is(rhs, 0) && isInteger(e.lhs)) {
+                    return e.lhs;
+                } else if (is(lhs, 0) && isInteger(e.rhs)) {
+                    return e.rhs;
+                }
+            }
+            case Sub -> {
+                if (is(rhs, 0) && isInteger(e.lhs)) {
+                    return e.lhs;
+                }
+            }
+            case Mul -> {
+                if (is(rhs, 1) && isInteger(e.lhs)) {
+                    return e.lhs;
+                } else if (is(lhs, 1) && isInteger(e.rhs)) {
+                    return e.rhs;
+                }
+            }
+            case Div -> {
+                if (is(rhs, 1) && isInteger(e.lhs)) {
+                    return e.lhs;
+                }
+            }
+            case And -> {
+                if (lhs == Atom.Bool.FALSE) {
+                    return new Expr.AtomicExpr(Atom.Bool.FALSE);
+                } else if (rhs == Atom.Bool.TRUE && isBool(e.lhs)) {
+                    return e.lhs;
+                } else if (lhs == Atom.Bool.TRUE && isBool(e.rhs)) {
+                    return e.rhs;
+                }
+            }
+            case Or -> {
+                if (lhs == Atom.Bool.TRUE) {
+                    return new Expr.AtomicExpr(Atom.Bool.TRUE);
+                } else if (rhs == Atom.Bool.FALSE && isBool(e.lhs)) {
+                    return e.lhs;
+                } else if (lhs == Atom.Bool.FALSE && isBool(e.rhs)) {
+                    return e.rhs;
+                }
+            }
+            default -> {
+            }
+        }
+        return e;
+    }
+
+    private static boolean is(Atom val, long n) {
+        return val instanceof Atom.Val && ((Atom.Val) val).val == n;
+    }
+
+    // whether expr either evaluates to a number or throws
+    private static boolean isInteger(Expr expr) {
+        if (expr instanceof Expr.AtomicExpr) {
+            Atom val = ((Expr.AtomicExpr) expr).val;
+            return val instanceof Atom.Val || val instanceof Atom.Big;
+        } else if (expr instanceof Expr.PrefixExpr) {
+            Expr.PrefixExpr e = (Expr.PrefixExpr) expr;
+            return e.op == PrefixOp.Negate && isInteger(e.rhs);
+        } else if (expr instanceof Expr.BinaryExpr) {
+            Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+            return switch (e.op) {
+                // the only operator that isn't arithmetic on anything else
+                case Add -> isInteger(e.lhs) || isInteger(e.rhs);
+                case Sub, Mul, Div, Mod -> true;
+                default -> false;
+            };
+        } else if (expr instanceof Expr.IfExpr) {
+            Expr.IfExpr e = (Expr.IfExpr) expr;
+            return isInteger(e.lhs) && isInteger(e.rhs);
+        }
+        return false;
+    }
+
+    // whether expr either evaluates to a bool or throws
+    private static boolean isBool(Expr expr) {
+        if (expr instanceof Expr.AtomicExpr) {
+            return ((Expr.AtomicExpr) expr).val instanceof Atom.Bool;
+        } else if (expr instanceof Expr.PrefixExpr) {
+            Expr.PrefixExpr e = (Expr.PrefixExpr) expr;
+            return e.op == PrefixOp.Negate && isBool(e.rhs);
+        } else if (expr instanceof Expr.BinaryExpr) {
+            Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+            return switch (e.op) {
+                case LT, GT, EQ, And, Or -> true;
+                default -> false;
+            };
+        } else if (expr instanceof Expr.IfExpr) {
+            Expr.IfExpr e = (Expr.IfExpr) expr;
+            return isBool(e.lhs) && isBool(e.rhs);
+        }
+        return false;
+    }
+
+    private static String optimized(String source) throws Exception {
+        return optimize(Parser.parseExpr(source)).toString();
+    }
+
+    public static void testOptimizer() throws Exception {
+        assert optimized("4 * -3 + 12").equals("0");
+        assert optimized("[1 + 1, ^[3, 4]]").equals("[2, 3]");
+        assert optimized("if (3 < 4) then (x) else (y)").equals("\"x\"");
+        assert optimized("if ([]) then (x) else (y)").equals("\"y\"");
+        assert optimized("fn (x) => (x - 1) * 1 + 0").equals("Lambda {expr: Sub, (\"x\", 1), argNames: [x]}");
+        assert optimized("fn (x) => x < 1 && true").equals("Lambda {expr: LT, (\"x\", 1), argNames: [x]}");
+        assert optimized("false && f(x)").equals("false");
+        assert optimized("--(x % 2)").equals("Mod, (\"x\", 2)");
+
+        // x could be a list, which + 0 is an error on
+        assert optimized("x + 0").equals("Add, (\"x\", 0)");
+        assert optimized("--x").equals("Negate (Negate (\"x\"))");
+        // errors are left for the evaluator, and so are sums of lists
+        assert optimized("1 / 0").equals("Div, (1, 0)");
+        assert optimized("if (1) then (2) else (3)").startsWith("if");
+        assert optimized("[1] + [2]").equals("Add, ([1], [2])");
+    }
+}
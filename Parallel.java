@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @version 0.1.0
+ *
+ *          Splits the work of a parallel builtin over the common ForkJoinPool.
+ *
+ *          <p>
+ *          The elements are split into slices of SLICE elements, and each
+ *          slice gets its own fork of the Caller, since a VM can only be used
+ *          by one thread. The session's globals are read by all of them at
+ *          once, so they can't be written to until the builtin is done.
+ *          </p>
+ *
+ *          <p>
+ *          Cancelling the script interrupts the threads running its slices,
+ *          and so does a slice failing, so that the first error is reported
+ *          without waiting for the rest of the list. A session with a Budget
+ *          runs the slices one after another on its own thread instead, so
+ *          that its limits stay exact, and so does a session with a Profile,
+ *          which keeps a single stack of calls.
+ *          </p>
+ */
+class Parallel {
+    static final int SLICE = 1024;
+
+    interface Slice {
+        void run(Caller caller, int lo, int hi) throws Exception;
+    }
+
+    // the group of the slice running on this thread, so that a parallel
+    // builtin called from a slice is cancelled along with it
+    private static final ThreadLocal<Group> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Runs slice over every SLICE elements of [0, n), and returns once all of
+     * them are done.
+     */
+    static void run(Caller caller, int n, Slice slice) throws Exception {
+        Globals globals = caller.globals();
+        globals.parallel.incrementAndGet();
+        try {
+            if (globals.budget != null || globals.profile != null || n <= SLICE) {
+                for (int lo = 0; lo < n; lo += SLICE) {
+                    slice.run(caller, lo, Math.min(n, lo + SLICE));
+                }
+                return;
+            }
+
+            Group parent = CURRENT.get();
+            Group group = new Group(parent);
+            Task root = new Task(group, caller, slice, 0, n);
+            try {
+                if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                    // already in a slice, where joining runs other tasks
+                    // instead of blocking the pool's thread
+                    root.invoke();
+                } else {
+                    ForkJoinPool.commonPool().execute(root);
+                    try {
+                        root.get();
+                    } catch (InterruptedException e) {
+                        group.cancel();
+                        // the slices still read the globals until they stop
+                        root.quietlyJoin();
+                        throw e;
+                    } catch (ExecutionException e) {
+                        throw new Exception(e.getCause());
+                    }
+                }
+            } finally {
+                if (parent != null) {
+                    parent.release(group);
+                }
+            }
+            if (group.failure != null) {
+                throw group.failure;
+            }
+        } finally {
+            globals.parallel.decrementAndGet();
+        }
+    }
+
+    private static class Group {
+        private final ArrayList<Thread> running = new ArrayList<>();
+        private final ArrayList<Group> children = new ArrayList<>();
+        private boolean cancelled = false;
+        volatile Exception failure;
+
+        Group(Group parent) {
+            if (parent != null) {
+                parent.adopt(this);
+            }
+        }
+
+        synchronized void adopt(Group child) {
+            if (cancelled) {
+                child.cancel();
+            } else {
+                children.add(child);
+            }
+        }
+
+        synchronized void release(Group child) {
+            children.remove(child);
+        }
+
+        /**
+         * Registers a thread that's about to run a slice, returning false if it
+         * shouldn't because the group was cancelled.
+         */
+        synchronized boolean start(Thread t) {
+            if (cancelled) {
+                return false;
+            }
+            running.add(t);
+            return true;
+        }
+
+        // under the same lock as cancel, so an interrupt can't reach the thread
+        // after it's moved on to something else
+        synchronized void finish(Thread t) {
+            running.remove(t);
+            Thread.interrupted();
+        }
+
+        synchronized void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            for (Thread t : running) {
+                t.interrupt();
+            }
+            for (Group child : children) {
+                child.cancel();
+            }
+        }
+
+        void fail(Exception e) {
+            synchronized (this) {
+                // the slices this cancels fail too, but only the first error
+                // is the real one
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            cancel();
+        }
+    }
+
+    private static class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Group group;
+        private final Caller caller;
+        private final Slice slice;
+        private final int lo;
+        private final int hi;
+
+        Task(Group group, Caller caller, Slice slice, int lo, int hi) {
+            this.group = group;
+            this.caller = caller;
+            this.slice = slice;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo > SLICE) {
+                // split on a multiple of SLICE, so that the slices are the same
+                // as when they run one after another
+                int slices = (hi - lo + SLICE - 1) / SLICE;
+                int mid = lo + slices / 2 * SLICE;
+                invokeAll(new Task(group, caller, slice, lo, mid), new Task(group, caller, slice, mid, hi));
+                return;
+            }
+
+            Thread t = Thread.currentThread();
+            if (!group.start(t)) {
+                return;
+            }
+            Group outer = CURRENT.get();
+            CURRENT.set(group);
+            try {
+                slice.run(caller.fork(), lo, hi);
+            } catch (Exception e) {
+                group.fail(e);
+            } catch (StackOverflowError e) {
+                group.fail(new Exception("Stack overflow: recursion too deep"));
+            } finally {
+                CURRENT.set(outer);
+                group.finish(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @version 0.1.0
+ *
+ *          Records where the scripts of a session spend their time.
+ *
+ *          <p>
+ *          Every call is counted under the name it was called by, which is
+ *          the name in the LambdaCall, or f for a lambda called by a builtin
+ *          like fmap. For each name the profile keeps the number of calls, the
+ *          time and bytes allocated in them, both in total and not counting
+ *          the calls they make, and the same self time for every distinct
+ *          stack of calls, which is what flame graphs are drawn from. It also
+ *          counts how often each operator is evaluated. A tail call takes the
+ *          place of the call that made it, just like it does on the stack.
+ *          </p>
+ *
+ *          <p>
+ *          Like a Budget, a Profile is kept in the session's Globals, and a
+ *          session without one only checks that it's null. A session with a
+ *          profile runs its scripts on the tree walker whatever its engine,
+ *          since that's where every call and operator is a node of its own,
+ *          and runs parallel builtins on its own thread. Allocated bytes are
+ *          only counted on JVMs that can measure them per thread, and are 0
+ *          otherwise.
+ *          </p>
+ */
+class Profile {
+    /**
+     * What was recorded for one name. The total time of a recursive lambda
+     * only counts its outermost call, so it's never more than the time
+     * spent in the script.
+     */
+    static class Stats {
+        long calls;
+        long totalNanos;
+        long selfNanos;
+        long totalBytes;
+        long selfBytes;
+
+        // calls of this name on the stack right now
+        private int active;
+
+        Stats copy() {
+            Stats s = new Stats();
+            s.calls = calls;
+            s.totalNanos = totalNanos;
+            s.selfNanos = selfNanos;
+            s.totalBytes = totalBytes;
+            s.selfBytes = selfBytes;
+            return s;
+        }
+
+        public String toString() {
+            return String.format("calls: %d, total: %d ns, self: %d ns, total: %d B, self: %d B", calls, totalNanos,
+                    selfNanos, totalBytes, selfBytes);
+        }
+    }
+
+    // a node of the tree of every stack seen so far
+    private static class Node {
+        final String name;
+        final HashMap<String, Node> children = new HashMap<>();
+        long selfNanos;
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    // a call that hasn't returned yet
+    private static class Call {
+        Node node;
+        Stats stats;
+        long start;
+        long startBytes;
+        long childNanos;
+        long childBytes;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private static com.sun.management.ThreadMXBean threads() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return (com.sun.management.ThreadMXBean) bean;
+        }
+        return null;
+    }
+
+    private final HashMap<String, Stats> stats = new HashMap<>();
+    private final long[] ops = new long[BinOp.values().length];
+    // the stacks start at the script that was run
+    private final Node root = new Node("script");
+
+    private Call[] calls = new Call[16];
+    private int depth = 0;
+
+    private static long allocated() {
+        return THREADS != null ? THREADS.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    /**
+     * Called before each script, which is the bottom of every stack.
+     */
+    void begin() {
+        depth = 0;
+        push(root, null);
+    }
+
+    /**
+     * Called after each script, even if it failed, which leaves the calls it
+     * was in when it did on the stack.
+     */
+    void end() {
+        while (depth > 0) {
+            exit();
+        }
+    }
+
+    void enter(String name) {
+        Node parent = calls[depth - 1].node;
+        Node node = parent.children.get(name);
+        if (node == null) {
+            node = new Node(name);
+            parent.children.put(name, node);
+        }
+        Stats s = stats.get(name);
+        if (s == null) {
+            s = new Stats();
+            stats.put(name, s);
+        }
+        s.calls += 1;
+        s.active += 1;
+        push(node, s);
+    }
+
+    private void push(Node node, Stats s) {
+        if (depth == calls.length) {
+            calls = Arrays.copyOf(calls, depth * 2);
+        }
+        Call call = calls[depth];
+        if (call == null) {
+            call = new Call();
+            calls[depth] = call;
+        }
+        call.node = node;
+        call.stats = s;
+        call.childNanos = 0;
+        call.childBytes = 0;
+        depth += 1;
+        // last, so that the profile's own work isn't counted
+        call.startBytes = allocated();
+        call.start = System.nanoTime();
+    }
+
+    void exit() {
+        long now = System.nanoTime();
+        long bytes = allocated();
+        depth -= 1;
+        Call call = calls[depth];
+        long nanos = now - call.start;
+        long allocated = bytes - call.startBytes;
+        long selfNanos = nanos - call.childNanos;
+        call.node.selfNanos += selfNanos;
+
+        Stats s = call.stats;
+        if (s != null) {
+            s.selfNanos += selfNanos;
+            s.selfBytes += allocated - call.childBytes;
+            s.active -= 1;
+            if (s.active == 0) {
+                s.totalNanos += nanos;
+                s.totalBytes += allocated;
+            }
+        }
+        if (depth > 0) {
+            calls[depth - 1].childNanos += nanos;
+            calls[depth - 1].childBytes += allocated;
+        }
+    }
+
+    /**
+     * A call in tail position, which replaces the one that made it.
+     */
+    void replace(String name) {
+        exit();
+        enter(name);
+    }
+
+    void op(BinOp op) {
+        ops[op.ordinal()] += 1;
+    }
+
+    /**
+     * A copy of what's been recorded so far for every name, by name.
+     */
+    public Map<String, Stats> calls() {
+        TreeMap<String, Stats> res = new TreeMap<>();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            res.put(e.getKey(), e.getValue().copy());
+        }
+        return res;
+    }
+
+    /**
+     * How many times each operator has been evaluated, leaving out the ones
+     * that never were.
+     */
+    public Map<BinOp, Long> ops() {
+        EnumMap<BinOp, Long> res = new EnumMap<>(BinOp.class);
+        for (BinOp op : BinOp.values()) {
+            if (ops[op.ordinal()] > 0) {
+                res.put(op, ops[op.ordinal()]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Writes every stack in the folded format flamegraph.pl and most other
+     * flame graph tools read: the names from the bottom of the stack up,
+     * separated by semicolons, then the self time in nanoseconds.
+     */
+    public void writeFolded(Writer out) throws IOException {
+        writeFolded(out, root, root.name);
+        out.flush();
+    }
+
+    private static void writeFolded(Writer out, Node node, String stack) throws IOException {
+        if (node.selfNanos > 0) {
+            out.write(stack);
+            out.write(' ');
+            out.write(Long.toString(node.selfNanos));
+            out.write('\n');
+        }
+        for (Node child : new TreeMap<>(node.children).values()) {
+            writeFolded(out, child, stack + ";" + child.name);
+        }
+    }
+
+    public static void testProfile() throws Exception {
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter i = new Interpreter(engine);
+            i.eval("let fib = fn (n) => if (n < 2) then (n) else (fib(n - 1) + fib(n - 2))");
+            i.eval("let count = fn (n, acc) => if (n == 0) then (acc) else (count(n - 1, acc + n))");
+
+            Profile profile = new Profile();
+            i.setProfile(profile);
+            assert i.eval("fib(10)").toString().equals("55");
+            assert i.eval("count(100, 0)").toString().equals("5050");
+            assert i.eval("fmap(fn (x) => x * 2, [0..10])").toString().startsWith("[0, 2");
+
+            Map<String, Stats> calls = profile.calls();
+            assert calls.get("fib").calls == 177;
+            // tail calls replace each other, so count is never under itself
+            assert calls.get("count").calls == 101;
+            assert calls.get("fmap").calls == 1 && calls.get("f").calls == 10;
+
+            Stats fib = calls.get("fib");
+            assert fib.selfNanos > 0 && fib.selfNanos <= fib.totalNanos;
+            assert calls.get("fmap").totalNanos >= calls.get("f").totalNanos;
+
+            Map<BinOp, Long> ops = profile.ops();
+            // n < 2 every call, n - 1 and n - 2 and + on all but the 89 leaves
+            assert ops.get(BinOp.LT) == 177 && ops.get(BinOp.Sub) == 2 * 88 + 100;
+            assert ops.get(BinOp.Mul) == 10 && !ops.containsKey(BinOp.Div);
+            // counted once whether it's a value or a condition
+            i.eval("let odd = fn (n) => if (n % 2 == 1) then (true) else (n % 2 == 1)");
+            long eq = ops.get(BinOp.EQ);
+            i.eval("odd(3)");
+            i.eval("odd(4)");
+            assert profile.ops().get(BinOp.Mod) == 3 && profile.ops().get(BinOp.EQ) == eq + 3;
+
+            StringWriter folded = new StringWriter();
+            profile.writeFolded(folded);
+            String out = folded.toString();
+            assert out.contains("script;fib;fib;fib ") && out.contains("script;fmap;f ");
+            assert !out.contains("count;count");
+            for (String line : out.split("\n")) {
+                assert line.matches("script(;[^; ]+)* [0-9]+");
+            }
+
+            // a failed script leaves nothing behind on the stack
+            i.eval("let deep = fn (n) => if (n == 0) then (undefined(1)) else (1 + deep(n - 1))");
+            boolean failed = false;
+            try {
+                i.eval("deep(10)");
+            } catch (Exception e) {
+                failed = true;
+            }
+            assert failed && profile.depth == 0;
+            assert profile.calls().get("deep").calls == 11;
+
+            // and without a profile nothing more is counted
+            i.setProfile(null);
+            i.eval("fib(5)");
+            assert profile.calls().get("fib").calls == 177;
+        }
+    }
+}
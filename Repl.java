@@ -1,8 +1,42 @@
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Scanner;
 
 public class Repl {
     public static void main(String[] args) throws Exception {
-        Interpreter i = new Interpreter();
+        boolean bytecode = false;
+        // where to write the folded stacks of the session, if it's profiled
+        String profilePath = null;
+        // where to restore the session from and save it to, if anywhere
+        Path snapshot = null;
+        for (int a = 0; a < args.length; a += 1) {
+            if (args[a].equals("--bytecode")) {
+                bytecode = true;
+            } else if (args[a].equals("--profile") && a + 1 < args.length) {
+                a += 1;
+                profilePath = args[a];
+            } else if (args[a].equals("--snapshot") && a + 1 < args.length) {
+                a += 1;
+                snapshot = Path.of(args[a]);
+            }
+        }
+        Interpreter i = new Interpreter(bytecode ? Interpreter.Engine.Bytecode : Interpreter.Engine.TreeWalk);
+        Profile profile = null;
+        if (profilePath != null) {
+            profile = new Profile();
+            i.setProfile(profile);
+        }
+        if (snapshot != null && Files.exists(snapshot)) {
+            try {
+                Snapshot.restore(i, snapshot);
+            } catch (Exception e) {
+                System.out.printf("Couldn't restore %s: %s%n", snapshot, e.getMessage());
+                // and it isn't saved over, in case it's worth looking at
+                snapshot = null;
+            }
+        }
 
         Scanner sc = new Scanner(System.in);
 
@@ -16,7 +50,19 @@ public class Repl {
                 break;
             } catch (Exception e) {
                 System.out.println(e.getMessage());
+            } catch (StackOverflowError e) {
+                // calls in tail position don't use the stack, but others still do
+                System.out.println("Stack overflow: recursion too deep");
             }
         }
+
+        if (profile != null) {
+            try (Writer out = new FileWriter(profilePath)) {
+                profile.writeFolded(out);
+            }
+        }
+        if (snapshot != null) {
+            Snapshot.save(i, snapshot);
+        }
     }
 }
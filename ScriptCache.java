@@ -0,0 +1,169 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @version 0.1.0
+ *
+ *          A bounded cache from source text to its parsed, optimized and
+ *          resolved Expr, and the Chunk it compiles to once the VM has needed
+ *          it.
+ *
+ *          <p>
+ *          A chat bot sees the same one liners over and over, and most of the
+ *          time spent on a short one is in the tokenizer and parser. Parsed
+ *          programs aren't changed by running them and Chunks are immutable,
+ *          so one cache can be shared by every Interpreter. The least recently
+ *          used entry is evicted once there are more than capacity of them.
+ *          </p>
+ *
+ *          <p>
+ *          Every session looks up every command here, so a hit doesn't take
+ *          a lock: it's a ConcurrentHashMap lookup and a write to the entry's
+ *          timestamp. Only adding an entry locks, to pick one to evict.
+ *          </p>
+ */
+class ScriptCache {
+    /**
+     * The cache every Interpreter uses unless it's given another one. Its size
+     * is set by the rustscript.cache.size system property.
+     */
+    static final ScriptCache SHARED = new ScriptCache(Integer.getInteger("rustscript.cache.size", 1024));
+
+    static class Script {
+        final Expr expr;
+        // compiled on first use by the VM; compiling is deterministic, so two
+        // threads racing to set it is harmless
+        private volatile Chunk chunk;
+        // System.nanoTime() of the last lookup, for picking what to evict
+        private volatile long used;
+
+        Script(Expr expr) {
+            this.expr = expr;
+        }
+
+        Chunk compiled() throws Exception {
+            Chunk c = chunk;
+            if (c == null) {
+                c = Compiler.compile(expr);
+                chunk = c;
+            }
+            return c;
+        }
+    }
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, Script> scripts = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ScriptCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the parsed program for source, parsing, optimizing and resolving
+     * it if it isn't cached. Sources that don't parse aren't cached.
+     */
+    public Script get(String source) throws Exception {
+        Script cached = scripts.get(source);
+        if (cached != null) {
+            cached.used = System.nanoTime();
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        // if two threads parse the same source the first one wins
+        Script parsed = new Script(Resolver.resolve(Optimizer.optimize(Parser.parseExpr(source))));
+        parsed.used = System.nanoTime();
+        if (capacity == 0) {
+            return parsed;
+        }
+        synchronized (this) {
+            cached = scripts.putIfAbsent(source, parsed);
+            if (cached != null) {
+                return cached;
+            }
+            while (scripts.size() > capacity) {
+                evictOldest();
+            }
+        }
+        return parsed;
+    }
+
+    // a scan, but it only happens on a miss when the cache is full, and
+    // parsing the miss costs more
+    private void evictOldest() {
+        Map.Entry<String, Script> oldest = null;
+        for (Map.Entry<String, Script> e : scripts.entrySet()) {
+            if (oldest == null || e.getValue().used - oldest.getValue().used < 0) {
+                oldest = e;
+            }
+        }
+        scripts.remove(oldest.getKey());
+        evictions.increment();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return scripts.size();
+    }
+
+    public void clear() {
+        scripts.clear();
+    }
+
+    public String toString() {
+        return String.format("ScriptCache {size: %d, capacity: %d, hits: %d, misses: %d, evictions: %d}",
+                size(), capacity, hits(), misses(), evictions());
+    }
+
+    public static void testScriptCache() throws Exception {
+        ScriptCache cache = new ScriptCache(2);
+
+        Script a = cache.get("1 + 2");
+        assert cache.get("1 + 2") == a;
+        assert cache.hits() == 1 && cache.misses() == 1;
+
+        // "1 + 2" was used more recently than "3", so "3" is evicted
+        cache.get("3");
+        cache.get("1 + 2");
+        cache.get("4");
+        assert cache.evictions() == 1 && cache.size() == 2;
+        assert cache.get("1 + 2") == a;
+        cache.get("3");
+        assert cache.misses() == 4;
+
+        // the Chunk is compiled once too
+        assert a.compiled() == a.compiled();
+
+        // sources that don't parse aren't cached
+        boolean threw = false;
+        try {
+            cache.get("1 +");
+        } catch (Exception e) {
+            threw = true;
+        }
+        assert threw;
+        assert cache.size() == 2;
+
+        // a cache of size 0 caches nothing
+        ScriptCache none = new ScriptCache(0);
+        assert none.get("1") != none.get("1");
+        assert none.size() == 0 && none.evictions() == 0;
+    }
+}
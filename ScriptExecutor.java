@@ -0,0 +1,185 @@
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @version 0.1.0
+ *
+ *          Runs scripts asynchronously, each with a deadline.
+ *
+ *          <p>
+ *          Every evaluation gets its own thread, virtual when the JVM has
+ *          them, so thousands of scripts waiting on each other or on a slow
+ *          caller don't need thousands of platform threads. A script that
+ *          runs past its deadline, or whose future is cancelled, has its
+ *          thread interrupted; the evaluators check for that on every call,
+ *          and builtins like sum every Builtins.CHECK_EVERY elements, so
+ *          even a script that never returns stops soon after.
+ *          </p>
+ *
+ *          <p>
+ *          Scripts of one session run one at a time in the order they were
+ *          submitted, since a session can't run two at once. A cancelled
+ *          script may take a moment to actually stop, and the next one waits
+ *          for that.
+ *          </p>
+ */
+class ScriptExecutor implements AutoCloseable {
+    private final ExecutorService threads = newThreads();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(daemon("script-timer"));
+    private final Duration timeout;
+
+    /**
+     * timeout is the deadline of scripts submitted without one.
+     */
+    public ScriptExecutor(Duration timeout) {
+        this.timeout = timeout;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor is only there from Java 21 on,
+    // and this builds for 17
+    private static ExecutorService newThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemon("script"));
+        }
+    }
+
+    public CompletableFuture<Atom> submit(Interpreter session, String source) {
+        return submit(session, source, timeout);
+    }
+
+    /**
+     * Evaluates source in session. The future fails with a TimeoutException if
+     * it doesn't finish within timeout, and cancelling it stops the script.
+     */
+    public CompletableFuture<Atom> submit(Interpreter session, String source, Duration timeout) {
+        CompletableFuture<Atom> result = new CompletableFuture<>();
+        Future<?> task = threads.submit(() -> {
+            ReentrantLock running = session.running;
+            try {
+                running.lockInterruptibly();
+            } catch (InterruptedException e) {
+                // cancelled or timed out while waiting for the session
+                return;
+            }
+            try {
+                result.complete(session.eval(source));
+            } catch (StackOverflowError e) {
+                result.completeExceptionally(new Exception("Stack overflow: recursion too deep"));
+            } catch (Throwable e) {
+                // if the script was interrupted, result is already cancelled
+                // or timed out and this does nothing
+                result.completeExceptionally(e);
+            } finally {
+                running.unlock();
+            }
+        });
+
+        ScheduledFuture<?> deadline = timer.schedule(() -> {
+            result.completeExceptionally(
+                    new TimeoutException(String.format("Script took longer than %d ms", timeout.toMillis())));
+        }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+        result.whenComplete((res, e) -> {
+            deadline.cancel(false);
+            if (e != null) {
+                // stops the script if it's still running, otherwise does nothing
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    public void close() {
+        threads.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    public static void testScriptExecutor() throws Exception {
+        try (ScriptExecutor executor = new ScriptExecutor(Duration.ofSeconds(10))) {
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                Interpreter session = new Interpreter(engine);
+                assert executor.submit(session, "sum([0..10])").get().toString().equals("45");
+
+                // a loop that never ends runs until its deadline
+                executor.submit(session, "let spin = fn (n) => spin(n + 1)").get();
+                CompletableFuture<Atom> spin = executor.submit(session, "spin(0)", Duration.ofMillis(50));
+                boolean timedOut = false;
+                try {
+                    spin.get();
+                } catch (ExecutionException e) {
+                    timedOut = e.getCause() instanceof TimeoutException;
+                }
+                assert timedOut;
+
+                // or until it's cancelled, and the session still works after
+                CompletableFuture<Atom> cancelled = executor.submit(session, "fmap(spin, [1])");
+                Thread.sleep(20);
+                assert cancelled.cancel(true);
+                assert executor.submit(session, "spin").get() instanceof Atom.Lambda;
+
+                // including when it's spread over other threads
+                CompletableFuture<Atom> parallel = executor.submit(session, "pfmap(spin, [0..5000])");
+                Thread.sleep(20);
+                assert parallel.cancel(true);
+                assert executor.submit(session, "1 + 1").get().toString().equals("2");
+
+                // builtins that don't call a lambda stop too, and let go of
+                // the session, however long their list is
+                for (String script : new String[] { "product([1..2000000000])", "sum([0..2000000000])" }) {
+                    CompletableFuture<Atom> builtin = executor.submit(session, script, Duration.ofMillis(100));
+                    timedOut = false;
+                    try {
+                        builtin.get();
+                    } catch (ExecutionException e) {
+                        timedOut = e.getCause() instanceof TimeoutException;
+                    }
+                    assert timedOut;
+                    long start = System.nanoTime();
+                    assert executor.submit(session, "sum([0..10])").get(2, TimeUnit.SECONDS).toString().equals("45");
+                    assert System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1);
+                }
+
+                // errors are passed on
+                boolean failed = false;
+                try {
+                    executor.submit(session, "undefined(1)").get();
+                } catch (ExecutionException e) {
+                    failed = e.getCause().getMessage().equals("Undefined lambda 'undefined'");
+                }
+                assert failed;
+            }
+
+            // the tree walker still recurses on the Java stack when it isn't a
+            // tail call
+            Interpreter session = new Interpreter(Interpreter.Engine.TreeWalk);
+            executor.submit(session, "let deep = fn (n) => 1 + deep(n)").get();
+            boolean overflowed = false;
+            try {
+                executor.submit(session, "deep(0)").get();
+            } catch (ExecutionException e) {
+                overflowed = e.getCause().getMessage().startsWith("Stack overflow");
+            }
+            assert overflowed;
+        }
+    }
+}
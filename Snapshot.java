@@ -0,0 +1,675 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * @version 0.1.0
+ *
+ *          Saves what a session has defined to a file, and restores it into
+ *          another session without parsing anything.
+ *
+ *          <p>
+ *          Only the globals that aren't the standard library's own are saved,
+ *          since every session already shares those. Lambdas are saved with
+ *          their resolved bodies and the frames they closed over, so a
+ *          restored lambda runs as it is, and the VM compiles it again the
+ *          first time it's called. Anything reachable from more than one
+ *          place, like a list two globals hold or the frame of a closure, is
+ *          saved once and is shared again after restoring. A builtin is saved
+ *          by name, and a memoized lambda as the lambda, with an empty cache.
+ *          </p>
+ *
+ *          <p>
+ *          The file is a header, then a count and that many name and value
+ *          pairs. Values are a tag byte followed by their fields, and one
+ *          that was written before is a REF to its index. Strings are written
+ *          once and referred to by index after that. Restoring memory maps
+ *          the file, and reads it all before defining anything, so a broken
+ *          file leaves the session as it was.
+ *          </p>
+ */
+class Snapshot {
+    // "RSS" and the version of the format
+    private static final int MAGIC = 0x52535301;
+
+    private static final byte NULL = 0;
+    private static final byte REF = 1;
+    private static final byte VAL = 2;
+    private static final byte BIG = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte CHAR = 6;
+    private static final byte UNIT = 7;
+    private static final byte RANGE = 8;
+    private static final byte LONGS = 9;
+    private static final byte CHARS = 10;
+    private static final byte ATOMS = 11;
+    private static final byte LAMBDA = 12;
+    private static final byte BUILTIN = 13;
+    private static final byte IDENT = 14;
+    private static final byte FRAME = 15;
+    private static final byte ATOMIC_EXPR = 16;
+    private static final byte PREFIX_EXPR = 17;
+    private static final byte BINARY_EXPR = 18;
+    private static final byte IF_EXPR = 19;
+    private static final byte LAMBDA_CALL = 20;
+    private static final byte ASSIGN_EXPR = 21;
+    private static final byte LAMBDA_EXPR = 22;
+    private static final byte LIST_EXPR = 23;
+    private static final byte MEMO = 24;
+
+    private static final BinOp[] BIN_OPS = BinOp.values();
+    private static final PrefixOp[] PREFIX_OPS = PrefixOp.values();
+
+    /**
+     * Writes everything session has defined to path, replacing it.
+     */
+    public static void save(Interpreter session, Path path) throws Exception {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            save(session.globals, out);
+        }
+    }
+
+    static void save(Globals globals, OutputStream stream) throws Exception {
+        // sorted, so that the same session always saves the same file
+        TreeMap<String, Atom> defined = new TreeMap<>();
+        for (Map.Entry<String, Atom> e : globals.all().entrySet()) {
+            if (Builtins.STDLIB.get(e.getKey()) != e.getValue()) {
+                defined.put(e.getKey(), e.getValue());
+            }
+        }
+
+        Writer w = new Writer(new DataOutputStream(stream));
+        w.out.writeInt(MAGIC);
+        w.out.writeInt(defined.size());
+        for (Map.Entry<String, Atom> e : defined.entrySet()) {
+            w.string(e.getKey());
+            w.atom(e.getValue());
+        }
+        w.out.flush();
+    }
+
+    /**
+     * Defines everything saved in path in session, over anything it already
+     * has of the same name.
+     */
+    public static void restore(Interpreter session, Path path) throws Exception {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            restore(session.globals, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static void restore(Globals globals, ByteBuffer buf) throws Exception {
+        Reader r = new Reader(buf, globals);
+        if (buf.remaining() < 8 || buf.getInt() != MAGIC) {
+            throw new IOException("Not a snapshot, or one of another version");
+        }
+        String[] names;
+        Atom[] vals;
+        try {
+            // a name's index and a value's tag
+            int n = r.length(5);
+            names = new String[n];
+            vals = new Atom[n];
+            for (int i = 0; i < n; i += 1) {
+                names[i] = r.string();
+                vals[i] = r.atom();
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | ClassCastException
+                | IllegalArgumentException e) {
+            throw corrupt();
+        }
+        for (int i = 0; i < names.length; i += 1) {
+            globals.put(names[i], vals[i]);
+        }
+    }
+
+    private static IOException corrupt() {
+        return new IOException("The snapshot is cut short or corrupt");
+    }
+
+    private static Interpreter restored(Interpreter from, Interpreter.Engine engine) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        save(from.globals, out);
+        Interpreter to = new Interpreter(engine);
+        restore(to.globals, ByteBuffer.wrap(out.toByteArray()));
+        return to;
+    }
+
+    public static void testSnapshot() throws Exception {
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter i = new Interpreter(engine);
+            i.eval("let fib = fn (n) => if (n < 2) then (n) else (fib(n - 1) + fib(n - 2))");
+            i.eval("let adder = fn (x) => fn (y) => x + y");
+            i.eval("let add10 = adder(10)");
+            i.eval("let big = 9223372036854775807 * 4");
+            i.eval("let words = [\"h\u00e9llo\", 'c', true, [1, [2, 3]], [0..5], ^$[10..20]]");
+            i.eval("let m = fmap");
+            i.globals.put("unit", Atom.Unit.UNIT);
+            i.eval("let sum = fn (ls) => 42");
+            i.eval("let both = [add10, add10]");
+            i.eval("let mfib = memo(fn (n) => if (n < 2) then (n) else (mfib(n - 1) + mfib(n - 2)))");
+            i.eval("mfib(10)");
+            i.eval("let squares = [x * x for x in [0..4]]");
+            i.eval("fib(5)");
+
+            // restored into either engine, whichever saved it
+            for (Interpreter.Engine other : Interpreter.Engine.values()) {
+                Interpreter r = restored(i, other);
+                assert r.eval("fib(15)").toString().equals("610");
+                assert r.eval("add10(5)").toString().equals("15");
+                r.eval("let add1 = adder(1)");
+                assert r.eval("add1(2)").toString().equals("3");
+                assert r.eval("big").toString().equals(i.eval("big").toString());
+                assert r.eval("words").toString().equals(i.eval("words").toString());
+                assert r.eval("m(fn (x) => x + 1, squares)").toString().equals("[1, 2, 5, 10]");
+                // a redefined builtin stays redefined, and the others are the stdlib's own
+                assert r.globals.get("unit") == Atom.Unit.UNIT;
+                assert r.eval("sum([1])").toString().equals("42");
+                assert r.globals.get("fmap") == Builtins.STDLIB.get("fmap");
+                // what was shared is still shared
+                Atom.List both = (Atom.List) r.globals.get("both");
+                assert both.get(0) == both.get(1) && both.get(0) == r.globals.get("add10");
+                assert ((Atom.Lambda) both.get(0)).env.globals == r.globals;
+                assert ((Atom.List) r.globals.get("squares")).holdsLongs();
+                assert r.eval("mfib(80)").toString().equals("23416728348467685");
+                assert Memo.of(r.globals.get("mfib")).misses() == 81;
+            }
+        }
+
+        // saving what was restored gives the same bytes
+        Interpreter i = new Interpreter(Interpreter.Engine.TreeWalk);
+        i.eval("let f = fn (x, y) => [x, y, \"s\"]");
+        i.eval("let g = f(1, [0..3])");
+        ByteArrayOutputStream once = new ByteArrayOutputStream();
+        ByteArrayOutputStream twice = new ByteArrayOutputStream();
+        save(i.globals, once);
+        save(restored(i, Interpreter.Engine.TreeWalk).globals, twice);
+        assert Arrays.equals(once.toByteArray(), twice.toByteArray());
+
+        // a broken snapshot is an error, and defines nothing
+        byte[] bytes = once.toByteArray();
+        for (int n : new int[] { 0, 5, bytes.length - 1 }) {
+            Interpreter r = new Interpreter(Interpreter.Engine.TreeWalk);
+            boolean failed = false;
+            try {
+                restore(r.globals, ByteBuffer.wrap(Arrays.copyOf(bytes, n)));
+            } catch (IOException e) {
+                failed = true;
+            }
+            assert failed && r.globals.get("f") == null;
+        }
+
+        // as is one whose lengths are wrong, however long they say it is
+        for (int length : new int[] { -5, 0x7ffffff0, 1 << 20 }) {
+            // the count of globals, the first name's index, and its length
+            for (int at : new int[] { 4, 8, 12 }) {
+                byte[] garbage = bytes.clone();
+                ByteBuffer.wrap(garbage).putInt(at, length);
+                Interpreter r = new Interpreter(Interpreter.Engine.TreeWalk);
+                boolean failed = false;
+                try {
+                    restore(r.globals, ByteBuffer.wrap(garbage));
+                } catch (IOException e) {
+                    failed = e.getMessage().equals("The snapshot is cut short or corrupt");
+                }
+                assert failed && r.globals.get("f") == null;
+            }
+        }
+
+        // and a session can't save what it can't restore
+        boolean saved = true;
+        i.globals.put("seq", new Builtins.Seq("fmap", false, i.globals.get("f"), Atom.List.range(0, 3)));
+        try {
+            save(i.globals, new ByteArrayOutputStream());
+        } catch (Exception e) {
+            saved = false;
+        }
+        assert !saved;
+
+        // through a file, which is mapped
+        Path path = Files.createTempFile("snapshot", ".rss");
+        try {
+            Interpreter from = new Interpreter(Interpreter.Engine.Bytecode);
+            for (int n = 0; n < 2000; n += 1) {
+                from.eval(String.format("let f%d = fn (x) => if (x < %d) then (x * 2) else (f%d(x - 1))", n, n,
+                        Math.max(n - 1, 0)));
+            }
+            save(from, path);
+            Interpreter to = new Interpreter(Interpreter.Engine.Bytecode);
+            restore(to, path);
+            assert to.eval("f1999(2500)").toString().equals(from.eval("f1999(2500)").toString());
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static class Writer {
+        final DataOutputStream out;
+        // what's been written, by identity, and its index
+        private final IdentityHashMap<Object, Integer> written = new IdentityHashMap<>();
+        private final HashMap<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void string(String s) throws IOException {
+            Integer i = strings.get(s);
+            if (i != null) {
+                out.writeInt(i);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(-1);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        // writes a REF and returns true if o was already written
+        private boolean ref(Object o) throws IOException {
+            Integer i = written.get(o);
+            if (i == null) {
+                return false;
+            }
+            out.writeByte(REF);
+            out.writeInt(i);
+            return true;
+        }
+
+        // o gets its index once everything in it is written, which is when
+        // the Reader has made it
+        private void done(Object o) {
+            written.put(o, written.size());
+        }
+
+        void atom(Atom a) throws Exception {
+            if (a == null) {
+                out.writeByte(NULL);
+            } else if (a instanceof Atom.Val) {
+                out.writeByte(VAL);
+                out.writeLong(((Atom.Val) a).val);
+            } else if (a instanceof Atom.Bool) {
+                out.writeByte(a == Atom.Bool.TRUE ? TRUE : FALSE);
+            } else if (a instanceof Atom.Char) {
+                out.writeByte(CHAR);
+                out.writeChar(((Atom.Char) a).val);
+            } else if (a instanceof Atom.Unit) {
+                out.writeByte(UNIT);
+            } else if (a instanceof Atom.Ident) {
+                Atom.Ident id = (Atom.Ident) a;
+                out.writeByte(IDENT);
+                string(id.name);
+                out.writeInt(id.depth);
+                out.writeInt(id.slot);
+            } else if (a instanceof Atom.Builtin && Builtins.STDLIB.get(((Atom.Builtin) a).name) == a) {
+                out.writeByte(BUILTIN);
+                string(((Atom.Builtin) a).name);
+            } else if (ref(a)) {
+                return;
+            } else if (Memo.of(a) != null) {
+                Memo memo = Memo.of(a);
+                out.writeByte(MEMO);
+                out.writeInt(memo.capacity);
+                atom(memo.f);
+                done(a);
+            } else if (a instanceof Atom.Big) {
+                byte[] bytes = ((Atom.Big) a).val.toByteArray();
+                out.writeByte(BIG);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                done(a);
+            } else if (a instanceof Atom.List) {
+                list((Atom.List) a);
+                done(a);
+            } else if (a instanceof Atom.Lambda) {
+                Atom.Lambda l = (Atom.Lambda) a;
+                out.writeByte(LAMBDA);
+                strings(l.argNames);
+                out.writeBoolean(l.captures);
+                expr(l.expr);
+                frame(l.env);
+                done(a);
+            } else {
+                throw new Exception(String.format("Can't save %s", a));
+            }
+        }
+
+        private void list(Atom.List ls) throws Exception {
+            int n = ls.size();
+            if (ls.isRange()) {
+                out.writeByte(RANGE);
+                out.writeLong(n > 0 ? ls.longAt(0) : 0);
+                out.writeInt(n);
+            } else if (ls.holdsLongs()) {
+                out.writeByte(LONGS);
+                out.writeInt(n);
+                for (int i = 0; i < n; i += 1) {
+                    out.writeLong(ls.longAt(i));
+                }
+            } else if (ls.holdsChars()) {
+                out.writeByte(CHARS);
+                out.writeInt(n);
+                for (int i = 0; i < n; i += 1) {
+                    out.writeChar(((Atom.Char) ls.get(i)).val);
+                }
+            } else {
+                out.writeByte(ATOMS);
+                out.writeInt(n);
+                for (int i = 0; i < n; i += 1) {
+                    atom(ls.get(i));
+                }
+            }
+        }
+
+        private void strings(ArrayList<String> ss) throws IOException {
+            out.writeInt(ss.size());
+            for (String s : ss) {
+                string(s);
+            }
+        }
+
+        private void frame(Frame f) throws Exception {
+            if (f == null) {
+                out.writeByte(NULL);
+                return;
+            } else if (ref(f)) {
+                return;
+            }
+            out.writeByte(FRAME);
+            out.writeInt(f.slots.length);
+            for (Atom a : f.slots) {
+                atom(a);
+            }
+            frame(f.parent);
+            done(f);
+        }
+
+        private void exprs(ArrayList<Expr> es) throws Exception {
+            out.writeInt(es.size());
+            for (Expr e : es) {
+                expr(e);
+            }
+        }
+
+        private void expr(Expr e) throws Exception {
+            if (ref(e)) {
+                return;
+            }
+            if (e instanceof Expr.AtomicExpr) {
+                out.writeByte(ATOMIC_EXPR);
+                atom(((Expr.AtomicExpr) e).val);
+            } else if (e instanceof Expr.PrefixExpr) {
+                Expr.PrefixExpr p = (Expr.PrefixExpr) e;
+                out.writeByte(PREFIX_EXPR);
+                out.writeByte(p.op.ordinal());
+                expr(p.rhs);
+            } else if (e instanceof Expr.BinaryExpr) {
+                Expr.BinaryExpr b = (Expr.BinaryExpr) e;
+                out.writeByte(BINARY_EXPR);
+                out.writeByte(b.op.ordinal());
+                expr(b.lhs);
+                expr(b.rhs);
+            } else if (e instanceof Expr.IfExpr) {
+                Expr.IfExpr i = (Expr.IfExpr) e;
+                out.writeByte(IF_EXPR);
+                expr(i.cond);
+                expr(i.lhs);
+                expr(i.rhs);
+            } else if (e instanceof Expr.LambdaCall) {
+                Expr.LambdaCall c = (Expr.LambdaCall) e;
+                out.writeByte(LAMBDA_CALL);
+                string(c.name);
+                out.writeInt(c.depth);
+                out.writeInt(c.slot);
+                out.writeBoolean(c.tail);
+                out.writeBoolean(c.deferLast);
+                exprs(c.variables);
+            } else if (e instanceof Expr.AssignExpr) {
+                Expr.AssignExpr a = (Expr.AssignExpr) e;
+                out.writeByte(ASSIGN_EXPR);
+                string(a.lhs);
+                expr(a.rhs);
+            } else if (e instanceof Expr.LambdaExpr) {
+                Expr.LambdaExpr l = (Expr.LambdaExpr) e;
+                out.writeByte(LAMBDA_EXPR);
+                strings(l.argNames);
+                out.writeBoolean(l.captures);
+                expr(l.expr);
+            } else if (e instanceof Expr.ListExpr) {
+                out.writeByte(LIST_EXPR);
+                exprs(((Expr.ListExpr) e).elements);
+            } else {
+                throw new Exception(String.format("Can't save %s", e));
+            }
+            done(e);
+        }
+    }
+
+    /**
+     * Reads back what a Writer wrote, in the same order, so that everything
+     * gets the same index it had when it was written.
+     */
+    private static class Reader {
+        private final ByteBuffer buf;
+        private final Globals globals;
+        private final ArrayList<Object> read = new ArrayList<>();
+        private final ArrayList<String> strings = new ArrayList<>();
+
+        Reader(ByteBuffer buf, Globals globals) {
+            this.buf = buf;
+            this.globals = globals;
+        }
+
+        String string() throws IOException {
+            int i = buf.getInt();
+            if (i != -1) {
+                return strings.get(i);
+            }
+            byte[] bytes = new byte[length(1)];
+            buf.get(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        private ArrayList<String> strings() throws IOException {
+            // a string is at least its index
+            int n = length(4);
+            ArrayList<String> res = new ArrayList<>(n);
+            for (int i = 0; i < n; i += 1) {
+                res.add(string());
+            }
+            return res;
+        }
+
+        private <T> T done(T o) {
+            read.add(o);
+            return o;
+        }
+
+        /**
+         * Reads the length of something of that many parts of at least
+         * bytesEach bytes, and checks that the rest of the file could hold
+         * them before anything is allocated for them.
+         */
+        int length(int bytesEach) throws IOException {
+            int n = buf.getInt();
+            if (n < 0 || (long) n * bytesEach > buf.remaining()) {
+                throw corrupt();
+            }
+            return n;
+        }
+
+        Atom atom() throws Exception {
+            byte tag = buf.get();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case REF:
+                    return (Atom) read.get(buf.getInt());
+                case VAL:
+                    return Atom.Val.of(buf.getLong());
+                case TRUE:
+                    return Atom.Bool.TRUE;
+                case FALSE:
+                    return Atom.Bool.FALSE;
+                case CHAR:
+                    return Atom.Char.of(buf.getChar());
+                case UNIT:
+                    return Atom.Unit.UNIT;
+                case IDENT: {
+                    Atom.Ident id = new Atom.Ident(string());
+                    id.depth = buf.getInt();
+                    id.slot = buf.getInt();
+                    return id;
+                }
+                case BUILTIN: {
+                    String name = string();
+                    Atom b = Builtins.STDLIB.get(name);
+                    if (!(b instanceof Atom.Builtin)) {
+                        throw new IOException(String.format("There's no builtin %s", name));
+                    }
+                    return b;
+                }
+                case BIG: {
+                    byte[] bytes = new byte[length(1)];
+                    buf.get(bytes);
+                    return done(Atom.Big.of(new BigInteger(bytes)));
+                }
+                case RANGE: {
+                    long lo = buf.getLong();
+                    return done(Atom.List.range(lo, length(0)));
+                }
+                case LONGS: {
+                    long[] longs = new long[length(Long.BYTES)];
+                    buf.asLongBuffer().get(longs);
+                    buf.position(buf.position() + longs.length * Long.BYTES);
+                    return done(new Atom.List(longs));
+                }
+                case CHARS: {
+                    char[] chars = new char[length(Character.BYTES)];
+                    buf.asCharBuffer().get(chars);
+                    buf.position(buf.position() + chars.length * Character.BYTES);
+                    return done(new Atom.List(new String(chars)));
+                }
+                case ATOMS: {
+                    Atom[] items = new Atom[length(1)];
+                    for (int i = 0; i < items.length; i += 1) {
+                        items[i] = atom();
+                    }
+                    return done(new Atom.List(items));
+                }
+                case MEMO: {
+                    int capacity = buf.getInt();
+                    Atom f = atom();
+                    if (capacity <= 0 || !(f instanceof Atom.Lambda)) {
+                        throw corrupt();
+                    }
+                    return done(Memo.of(f, capacity));
+                }
+                case LAMBDA: {
+                    ArrayList<String> argNames = strings();
+                    boolean captures = buf.get() != 0;
+                    Expr expr = expr();
+                    return done(new Atom.Lambda(expr, argNames, frame(), captures));
+                }
+                default:
+                    throw new IOException(String.format("Bad tag %d in snapshot", tag));
+            }
+        }
+
+        private Frame frame() throws Exception {
+            byte tag = buf.get();
+            if (tag == NULL) {
+                return null;
+            } else if (tag == REF) {
+                return (Frame) read.get(buf.getInt());
+            } else if (tag != FRAME) {
+                throw new IOException(String.format("Bad tag %d in snapshot", tag));
+            }
+            Atom[] slots = new Atom[length(1)];
+            for (int i = 0; i < slots.length; i += 1) {
+                slots[i] = atom();
+            }
+            return done(new Frame(slots, frame(), globals));
+        }
+
+        private ArrayList<Expr> exprs() throws Exception {
+            int n = length(1);
+            ArrayList<Expr> res = new ArrayList<>(n);
+            for (int i = 0; i < n; i += 1) {
+                res.add(expr());
+            }
+            return res;
+        }
+
+        private Expr expr() throws Exception {
+            byte tag = buf.get();
+            switch (tag) {
+                case REF:
+                    return (Expr) read.get(buf.getInt());
+                case ATOMIC_EXPR:
+                    return done(new Expr.AtomicExpr(atom()));
+                case PREFIX_EXPR: {
+                    PrefixOp op = PREFIX_OPS[buf.get()];
+                    return done(new Expr.PrefixExpr(op, expr()));
+                }
+                case BINARY_EXPR: {
+                    BinOp op = BIN_OPS[buf.get()];
+                    Expr lhs = expr();
+                    return done(new Expr.BinaryExpr(op, lhs, expr()));
+                }
+                case IF_EXPR: {
+                    Expr cond = expr();
+                    Expr lhs = expr();
+                    return done(new Expr.IfExpr(cond, lhs, expr()));
+                }
+                case LAMBDA_CALL: {
+                    String name = string();
+                    int depth = buf.getInt();
+                    int slot = buf.getInt();
+                    boolean tail = buf.get() != 0;
+                    boolean deferLast = buf.get() != 0;
+                    Expr.LambdaCall c = new Expr.LambdaCall(name, exprs());
+                    c.depth = depth;
+                    c.slot = slot;
+                    c.tail = tail;
+                    c.deferLast = deferLast;
+                    return done(c);
+                }
+                case ASSIGN_EXPR: {
+                    String lhs = string();
+                    return done(new Expr.AssignExpr(lhs, expr()));
+                }
+                case LAMBDA_EXPR: {
+                    Expr.LambdaExpr l = new Expr.LambdaExpr(null, strings());
+                    l.captures = buf.get() != 0;
+                    l.expr = expr();
+                    return done(l);
+                }
+                case LIST_EXPR:
+                    return done(new Expr.ListExpr(exprs()));
+                default:
+                    throw new IOException(String.format("Bad tag %d in snapshot", tag));
+            }
+        }
+    }
+}
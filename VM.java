@@ -0,0 +1,439 @@
+import java.util.Arrays;
+
+/**
+ * @version 0.1.0
+ *
+ *          The VM runs Chunks produced by the Compiler.
+ *
+ *          <p>
+ *          It's a plain stack machine with a single dispatch loop. Calls don't
+ *          recurse on the Java stack; instead the caller's chunk, program
+ *          counter and frame are pushed onto the VM's own call stack, so deep
+ *          recursion in a script is limited by memory rather than by the size
+ *          of the Java stack. Calls in tail position don't push anything, so
+ *          a loop written as tail recursion runs in constant space.
+ *          </p>
+ */
+class VM implements Caller {
+    private final Globals globals;
+
+    // both stacks start out small on purpose: growing them while the JIT is
+    // still profiling means the compiled dispatch loop already handles it,
+    // instead of deoptimizing the first time a deep recursion needs more room
+    private Atom[] stack = new Atom[16];
+    private int sp = 0;
+
+    private Chunk[] callChunks = new Chunk[16];
+    private int[] callPcs = new int[16];
+    private Frame[] callFrames = new Frame[16];
+    private int callDepth = 0;
+
+    public VM(Globals globals) {
+        this.globals = globals;
+    }
+
+    private Atom[] growStack(int sp, int needed) {
+        if (sp + needed > stack.length) {
+            Atom[] grown = new Atom[Math.max(stack.length * 2, sp + needed)];
+            System.arraycopy(stack, 0, grown, 0, sp);
+            stack = grown;
+        }
+        return stack;
+    }
+
+    private void pushCall(Chunk chunk, int pc, Frame frame) {
+        if (callDepth == callChunks.length) {
+            int len = callDepth * 2;
+            Chunk[] chunks = new Chunk[len];
+            int[] pcs = new int[len];
+            Frame[] frames = new Frame[len];
+            System.arraycopy(callChunks, 0, chunks, 0, callDepth);
+            System.arraycopy(callPcs, 0, pcs, 0, callDepth);
+            System.arraycopy(callFrames, 0, frames, 0, callDepth);
+            callChunks = chunks;
+            callPcs = pcs;
+            callFrames = frames;
+        }
+        callChunks[callDepth] = chunk;
+        callPcs[callDepth] = pc;
+        callFrames[callDepth] = frame;
+        callDepth += 1;
+    }
+
+    public Atom run(Chunk chunk) throws Exception {
+        int baseSp = sp;
+        int baseDepth = callDepth;
+        try {
+            return execute(chunk, new Frame(new Atom[chunk.slots], null, globals), baseDepth);
+        } finally {
+            // popped values aren't cleared while running, so do it once here to
+            // avoid holding on to them. An exception also leaves the call stack
+            // in whatever state it was in.
+            Arrays.fill(stack, baseSp, stack.length, null);
+            Arrays.fill(callChunks, baseDepth, callChunks.length, null);
+            Arrays.fill(callFrames, baseDepth, callFrames.length, null);
+            sp = baseSp;
+            callDepth = baseDepth;
+        }
+    }
+
+    private Atom execute(Chunk chunk, Frame frame, int baseDepth) throws Exception {
+        // the operand stack and stack pointer are kept in locals so that the JIT
+        // can keep them in registers
+        int sp = this.sp;
+        Atom[] stack = growStack(sp, chunk.maxStack);
+        int[] code = chunk.code;
+        int pc = 0;
+        // null unless the session has limits, so that's all that's checked
+        Budget budget = globals.budget;
+
+        for (;;) {
+            switch (code[pc++]) {
+                case Op.Const -> stack[sp++] = chunk.constants[code[pc++]];
+                case Op.LoadLocal -> stack[sp++] = frame.slots[code[pc++]];
+                case Op.LoadGlobal -> {
+                    String name = chunk.names[code[pc++]];
+                    Atom res = globals.get(name);
+                    if (res == null) {
+                        throw error("Tried to access nonexistent variable %s", name);
+                    }
+                    stack[sp++] = res;
+                }
+                case Op.Add -> {
+                    sp -= 1;
+                    Atom res = stack[sp - 1].add(stack[sp]);
+                    if (res instanceof Atom.List && budget != null) {
+                        budget.checkList(res);
+                    }
+                    stack[sp - 1] = res;
+                }
+                case Op.Sub -> {
+                    sp -= 1;
+                    stack[sp - 1] = stack[sp - 1].sub(stack[sp]);
+                }
+                case Op.Mul -> {
+                    sp -= 1;
+                    stack[sp - 1] = stack[sp - 1].mul(stack[sp]);
+                }
+                case Op.LT -> {
+                    sp -= 1;
+                    stack[sp - 1] = stack[sp - 1].lt(stack[sp]);
+                }
+                case Op.GT -> {
+                    sp -= 1;
+                    stack[sp - 1] = stack[sp - 1].gt(stack[sp]);
+                }
+                case Op.EQ -> {
+                    sp -= 1;
+                    stack[sp - 1] = stack[sp - 1].eq(stack[sp]);
+                }
+                case Op.Jump -> pc = code[pc];
+                case Op.JumpIfFalse -> {
+                    sp -= 1;
+                    pc = stack[sp].isTruthy() ? pc + 1 : code[pc];
+                }
+                case Op.JumpIfNotLT -> {
+                    sp -= 2;
+                    pc = stack[sp].less(stack[sp + 1]) ? pc + 1 : code[pc];
+                }
+                case Op.JumpIfNotGT -> {
+                    sp -= 2;
+                    pc = stack[sp].greater(stack[sp + 1]) ? pc + 1 : code[pc];
+                }
+                case Op.JumpIfNotEQ -> {
+                    sp -= 2;
+                    pc = stack[sp].equal(stack[sp + 1]) ? pc + 1 : code[pc];
+                }
+                case Op.AddLocalConst -> {
+                    Atom lhs = frame.slots[code[pc++]];
+                    stack[sp++] = lhs.add(chunk.constants[code[pc++]]);
+                }
+                case Op.SubLocalConst -> {
+                    Atom lhs = frame.slots[code[pc++]];
+                    stack[sp++] = lhs.sub(chunk.constants[code[pc++]]);
+                }
+                case Op.JumpIfNotLTLocalConst -> {
+                    Atom lhs = frame.slots[code[pc++]];
+                    Atom rhs = chunk.constants[code[pc++]];
+                    pc = lhs.less(rhs) ? pc + 1 : code[pc];
+                }
+                case Op.JumpIfNotGTLocalConst -> {
+                    Atom lhs = frame.slots[code[pc++]];
+                    Atom rhs = chunk.constants[code[pc++]];
+                    pc = lhs.greater(rhs) ? pc + 1 : code[pc];
+                }
+                case Op.JumpIfNotEQLocalConst -> {
+                    Atom lhs = frame.slots[code[pc++]];
+                    Atom rhs = chunk.constants[code[pc++]];
+                    pc = lhs.equal(rhs) ? pc + 1 : code[pc];
+                }
+                case Op.Call, Op.CallGlobal, Op.TailCall, Op.TailCallGlobal -> {
+                    int op = code[pc - 1];
+                    boolean global = op == Op.CallGlobal || op == Op.TailCallGlobal;
+                    int argc = code[pc++];
+                    int name = code[pc++];
+
+                    Atom callee;
+                    if (global) {
+                        callee = globals.get(chunk.names[name]);
+                        if (callee == null) {
+                            throw error("Undefined lambda '%s'", chunk.names[name]);
+                        }
+                    } else {
+                        callee = stack[sp - argc - 1];
+                    }
+                    if (budget != null) {
+                        budget.step();
+                    }
+                    if (!(callee instanceof Atom.Lambda)) {
+                        sp = callBuiltin(callee, chunk.names[name], argc, global ? sp - argc : sp - argc - 1, sp);
+                        stack = this.stack;
+                        continue;
+                    }
+                    Expr.LambdaCall.checkInterrupted();
+                    Atom.Lambda lambda = (Atom.Lambda) callee;
+                    Chunk target = lambda.compiled();
+                    if (argc != target.arity) {
+                        throw error("Expected %d arguments to call of lambda %s, got %d", target.arity,
+                                chunk.names[name], argc);
+                    }
+
+                    if (op == Op.Call || op == Op.CallGlobal) {
+                        if (budget != null) {
+                            budget.enter();
+                        }
+                        pushCall(chunk, pc, frame);
+                    } else if (target == chunk && chunk.protos.length == 0 && lambda.env == frame.parent) {
+                        // a self tail call from a lambda that creates no closures,
+                        // so nothing else can see its frame and it can be reused
+                        System.arraycopy(stack, sp - argc, frame.slots, 0, argc);
+                        sp -= global ? argc : argc + 1;
+                        pc = 0;
+                        continue;
+                    }
+
+                    Atom[] slots = new Atom[target.slots];
+                    System.arraycopy(stack, sp - argc, slots, 0, argc);
+                    sp -= global ? argc : argc + 1;
+
+                    chunk = target;
+                    code = chunk.code;
+                    pc = 0;
+                    frame = new Frame(slots, lambda.env, globals);
+                    if (sp + chunk.maxStack > stack.length) {
+                        stack = growStack(sp, chunk.maxStack);
+                    }
+                }
+                case Op.Return -> {
+                    if (callDepth == baseDepth) {
+                        this.sp = sp - 1;
+                        return stack[sp - 1];
+                    }
+                    callDepth -= 1;
+                    if (budget != null) {
+                        budget.exit();
+                    }
+                    chunk = callChunks[callDepth];
+                    pc = callPcs[callDepth];
+                    frame = callFrames[callDepth];
+                    code = chunk.code;
+                }
+                default -> {
+                    this.sp = sp;
+                    pc = slowOp(code[pc - 1], chunk, frame, pc);
+                    sp = this.sp;
+                    // a slow op may have called back into the VM, which can
+                    // grow the stack
+                    stack = this.stack;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calls a builtin with the top argc values on the stack, and replaces
+     * everything from base up with the result. Returns the new stack pointer.
+     */
+    private int callBuiltin(Atom callee, String name, int argc, int base, int sp) throws Exception {
+        if (!(callee instanceof Atom.Builtin)) {
+            throw error("Can't call %s, it isn't a lambda", name);
+        }
+        Atom.Builtin builtin = (Atom.Builtin) callee;
+        if (argc != builtin.arity) {
+            throw error("Expected %d arguments to call of lambda %s, got %d", builtin.arity, name, argc);
+        }
+
+        Atom[] args = new Atom[argc];
+        System.arraycopy(stack, sp - argc, args, 0, argc);
+        // the builtin might call back into the VM, which runs above this.sp
+        this.sp = base;
+        Atom res = builtin.body.call(this, args);
+        stack[base] = res;
+        return base + 1;
+    }
+
+    /**
+     * Calls a lambda or builtin from Java, which is how builtins call back into
+     * the script. The lambda runs in a nested dispatch loop on top of the
+     * current stacks.
+     */
+    public Atom call(String name, Atom callee, Atom[] args) throws Exception {
+        Budget budget = globals.budget;
+        if (budget != null) {
+            budget.step();
+        }
+        if (callee instanceof Atom.Builtin) {
+            Expr.LambdaCall.checkCall(name, callee, args.length);
+            return ((Atom.Builtin) callee).body.call(this, args);
+        } else if (!(callee instanceof Atom.Lambda)) {
+            throw error("Can't call %s, it isn't a lambda", name);
+        }
+
+        Expr.LambdaCall.checkInterrupted();
+        Atom.Lambda lambda = (Atom.Lambda) callee;
+        Chunk target = lambda.compiled();
+        if (args.length != target.arity) {
+            throw error("Expected %d arguments to call of lambda %s, got %d", target.arity, name, args.length);
+        }
+        Atom[] slots = new Atom[target.slots];
+        System.arraycopy(args, 0, slots, 0, args.length);
+        if (budget == null) {
+            return execute(target, new Frame(slots, lambda.env, globals), callDepth);
+        }
+        budget.enter();
+        Atom res = execute(target, new Frame(slots, lambda.env, globals), callDepth);
+        budget.exit();
+        return res;
+    }
+
+    public Globals globals() {
+        return globals;
+    }
+
+    // a VM's stacks are its own, so another thread needs another VM
+    public Caller fork() {
+        return new VM(globals);
+    }
+
+    private static Exception error(String format, Object... args) {
+        return new Exception(String.format(format, args));
+    }
+
+    /**
+     * Runs the instructions that don't show up in tight loops. Keeping them out
+     * of execute keeps the dispatch loop small, which makes it quicker for the
+     * JIT to compile and easier for it to optimize.
+     */
+    private int slowOp(int op, Chunk chunk, Frame frame, int pc) throws Exception {
+        int[] code = chunk.code;
+        switch (op) {
+            case Op.LoadOuter -> {
+                int depth = code[pc++];
+                stack[sp++] = frame.up(depth).slots[code[pc++]];
+            }
+            case Op.StoreGlobal -> {
+                globals.put(chunk.names[code[pc++]], stack[sp - 1]);
+                stack[sp - 1] = Atom.Unit.UNIT;
+            }
+            case Op.Div -> {
+                sp -= 1;
+                stack[sp - 1] = stack[sp - 1].div(stack[sp]);
+            }
+            case Op.Mod -> {
+                sp -= 1;
+                stack[sp - 1] = stack[sp - 1].mod(stack[sp]);
+            }
+            case Op.Negate -> stack[sp - 1] = stack[sp - 1].negate();
+            case Op.Head -> stack[sp - 1] = stack[sp - 1].head();
+            case Op.Tail -> stack[sp - 1] = stack[sp - 1].tail();
+            case Op.MakeList -> {
+                int n = code[pc++];
+                Atom[] items = new Atom[n];
+                System.arraycopy(stack, sp - n, items, 0, n);
+                sp -= n;
+                stack[sp++] = new Atom.List(items);
+            }
+            case Op.Closure -> stack[sp++] = new Atom.Lambda(chunk.protos[code[pc++]], frame);
+            case Op.DeferGlobal -> {
+                int argc = code[pc++];
+                String name = chunk.names[code[pc++]];
+                Atom to = globals.get(chunk.names[code[pc++]]);
+                Atom callee = globals.get(name);
+                if (callee == null) {
+                    throw error("Undefined lambda '%s'", name);
+                }
+                Atom[] args = new Atom[argc];
+                System.arraycopy(stack, sp - argc, args, 0, argc);
+                sp -= argc;
+
+                Atom seq = Builtins.streams(to) ? Builtins.defer(callee, args) : null;
+                if (seq != null) {
+                    // counted like the call it stands for
+                    if (globals.budget != null) {
+                        globals.budget.step();
+                    }
+                    Expr.LambdaCall.checkInterrupted();
+                    stack[sp++] = seq;
+                } else {
+                    // not the builtin it was compiled for, so it's an ordinary
+                    // call, just made from Java
+                    Atom res = call(name, callee, args);
+                    stack[sp++] = res;
+                }
+            }
+            default -> throw error("Bad opcode %d", op);
+        }
+        return pc;
+    }
+
+    private static Chunk compileSource(String expr) throws Exception {
+        return Compiler.compile(Resolver.resolve(Parser.parseExpr(expr)));
+    }
+
+    public static void testVM() throws Exception {
+        Globals globals = new Globals();
+        VM vm = new VM(globals);
+
+        {
+            Atom res = vm.run(compileSource("(5 + -12) * (3 - -2)"));
+            assert ((Atom.Val) res).val == -35;
+        }
+
+        {
+            Atom res = vm.run(compileSource("let x = 15"));
+            assert res instanceof Atom.Unit;
+            assert ((Atom.Val) globals.get("x")).val == 15;
+
+            res = vm.run(compileSource("[x, x * 2, ^[7, 8]]"));
+            assert res.toString().equals("[15, 30, 7]");
+        }
+
+        {
+            vm.run(compileSource("let fib = fn (n) => if (n < 2) then (1) else (fib(n - 1) + fib(n - 2))"));
+            Atom res = vm.run(compileSource("fib(10)"));
+            assert ((Atom.Val) res).val == 89;
+        }
+
+        {
+            // closures capture the frame they were created in
+            vm.run(compileSource("let adder = fn (n) => fn (x) => x + n"));
+            vm.run(compileSource("let apply = fn (f, x) => f(x)"));
+            Atom res = vm.run(compileSource("apply(adder(10), 5)"));
+            assert ((Atom.Val) res).val == 15;
+        }
+
+        {
+            // errors leave the VM usable
+            boolean threw = false;
+            try {
+                vm.run(compileSource("fib(1, 2)"));
+            } catch (Exception e) {
+                threw = e.getMessage().equals("Expected 1 arguments to call of lambda fib, got 2");
+            }
+            assert threw;
+
+            Atom res = vm.run(compileSource("fib(5)"));
+            assert ((Atom.Val) res).val == 8;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package rustscript.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @version 0.1.0
+ *
+ *          Recursive lambdas, where the cost is mostly in calls and arithmetic.
+ *
+ *          <p>
+ *          The tree walker recurses on the Java stack, so ack needs a bigger
+ *          stack than the default.
+ *          </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xss64m")
+public class CallBench {
+    @Param({ "TreeWalk", "Bytecode" })
+    String engine;
+
+    Script script;
+
+    @Setup
+    public void setup() throws Throwable {
+        script = new Script(engine);
+        script.eval("let ack = fn (m, n) => if (m == 0) then (n + 1) else (if (n == 0) then (ack(m - 1, 1)) "
+                + "else (ack(m - 1, ack(m, n - 1))))");
+        script.eval("let fib = fn (n) => if (n < 2) then (n) else (fib(n - 1) + fib(n - 2))");
+        script.eval("let count = fn (n, acc) => if (n == 0) then (acc) else (count(n - 1, acc + n))");
+    }
+
+    @Benchmark
+    public Object ack() throws Throwable {
+        return script.eval("ack(3, 8)");
+    }
+
+    @Benchmark
+    public Object fib() throws Throwable {
+        return script.eval("fib(22)");
+    }
+
+    @Benchmark
+    public Object tailLoop() throws Throwable {
+        return script.eval("count(100000, 0)");
+    }
+}
@@ -0,0 +1,68 @@
+package rustscript.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @version 0.1.0
+ *
+ *          Tokenizing and parsing a one liner of the size the REPL sees, and
+ *          a generated script a few hundred KB long, which is mostly names,
+ *          numbers and punctuation like real code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FrontEndBench {
+    static final String SOURCE = "let ack = fn (m, n) => if (m == 0) then (n + 1) else (if (n == 0) "
+            + "then (ack(m - 1, 1)) else (ack(m - 1, ack(m, n - 1)))) && "
+            + "[x * x + 1 for x in [0..100] if x % 3 == 0 || x > 50] && \"a string\" && [1, 2, 3]";
+
+    static final String LARGE = large(2000);
+
+    // a list of n lambdas, each with its own names and a call to the last
+    static String large(int n) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < n; i += 1) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("fn (acc_").append(i).append(", x) => if (x < ").append(i)
+                    .append(") then (f_").append(i).append("(acc_").append(i).append(" + x * 2, $xs)) else ([x for x in [0..")
+                    .append(i * 31).append("] if x % 7 == 0 && x > acc_").append(i).append("])");
+        }
+        return sb.append("]").toString();
+    }
+
+    @Benchmark
+    public Object tokenize() throws Throwable {
+        return Script.tokenize(SOURCE);
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return Script.parse(SOURCE);
+    }
+
+    @Benchmark
+    public Object tokenizeLarge() throws Throwable {
+        return Script.tokenize(LARGE);
+    }
+
+    @Benchmark
+    public Object parseLarge() throws Throwable {
+        return Script.parse(LARGE);
+    }
+}
@@ -0,0 +1,78 @@
+package rustscript.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * @version 0.1.0
+ *
+ *          The list builtins and list comprehensions over [0..n].
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ListBench {
+    @Param({ "TreeWalk", "Bytecode" })
+    String engine;
+
+    @Param({ "1000", "100000" })
+    int n;
+
+    Script script;
+
+    @Setup
+    public void setup() throws Throwable {
+        script = new Script(engine);
+        script.eval("let n = " + n);
+        script.eval("let ls = [0..n]");
+    }
+
+    @Benchmark
+    public Object range() throws Throwable {
+        return script.eval("[0..n]");
+    }
+
+    @Benchmark
+    public Object fmap() throws Throwable {
+        return script.eval("fmap(fn (x) => x * 2, ls)");
+    }
+
+    @Benchmark
+    public Object pfmap() throws Throwable {
+        return script.eval("pfmap(fn (x) => x * 2, ls)");
+    }
+
+    @Benchmark
+    public Object filter() throws Throwable {
+        return script.eval("filter(fn (x) => x % 3 == 0, ls)");
+    }
+
+    @Benchmark
+    public Object fold() throws Throwable {
+        return script.eval("fold(fn (acc, x) => acc + x, 0, ls)");
+    }
+
+    @Benchmark
+    public Object sum() throws Throwable {
+        return script.eval("sum(ls)");
+    }
+
+    @Benchmark
+    public Object comprehension() throws Throwable {
+        return script.eval("[x * x for x in [0..n] if x % 2 == 0]");
+    }
+}
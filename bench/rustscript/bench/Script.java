@@ -0,0 +1,73 @@
+package rustscript.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * @version 0.1.0
+ *
+ *          Reaches the interpreter from the benchmarks.
+ *
+ *          <p>
+ *          JMH won't generate code for benchmarks in the default package, and
+ *          classes in a named package can't import from the default package,
+ *          so the entry points are looked up once by name. The handles are
+ *          static final, so the JIT inlines through them the same as a direct
+ *          call.
+ *          </p>
+ */
+final class Script {
+    private static final MethodHandle NEW_INTERPRETER;
+    private static final MethodHandle EVAL;
+    private static final MethodHandle TOKENIZE;
+    private static final MethodHandle PARSE;
+
+    static {
+        try {
+            Class<?> interpreter = Class.forName("Interpreter");
+            Class<?> engine = Class.forName("Interpreter$Engine");
+            Class<?> atom = Class.forName("Atom");
+            Class<?> expr = Class.forName("Expr");
+
+            // most of the interpreter's classes aren't public, so this needs a
+            // lookup with the access of a class in its package
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(interpreter, MethodHandles.lookup());
+            NEW_INTERPRETER = lookup.findConstructor(interpreter, MethodType.methodType(void.class, engine))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            EVAL = lookup.findVirtual(interpreter, "eval", MethodType.methodType(atom, String.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, String.class));
+            TOKENIZE = lookup
+                    .findStatic(Class.forName("Tokenizer"), "tokenize",
+                            MethodType.methodType(Class.forName("Tokens"), String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+            PARSE = lookup.findStatic(Class.forName("Parser"), "parseExpr", MethodType.methodType(expr, String.class))
+                    .asType(MethodType.methodType(Object.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object interpreter;
+
+    /**
+     * engine is the name of an Interpreter.Engine, TreeWalk or Bytecode.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    Script(String engine) throws Throwable {
+        Object e = Enum.valueOf((Class) Class.forName("Interpreter$Engine"), engine);
+        interpreter = (Object) NEW_INTERPRETER.invokeExact(e);
+    }
+
+    Object eval(String expr) throws Throwable {
+        return (Object) EVAL.invokeExact(interpreter, expr);
+    }
+
+    static Object tokenize(String input) throws Throwable {
+        return (Object) TOKENIZE.invokeExact(input);
+    }
+
+    static Object parse(String input) throws Throwable {
+        return (Object) PARSE.invokeExact(input);
+    }
+}